@@ -16,6 +16,7 @@
 package se.trixon.idd;
 
 import java.io.File;
+import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.configuration2.Configuration;
@@ -41,11 +42,26 @@ public class Config {
     private Configuration mConfiguration;
     private File mDbFile;
     private String mDbMode;
+    private int mDbPoolSize;
+    private int mDbPoolTimeout;
+    private boolean mDbServer;
+    private FrameQueue.Policy mFrameQueuePolicy;
+    private int mFrameQueueSize;
     private File mImageDirectory;
     private int mImageDirectoryLevel;
     private String[] mImageFormats;
     private int mPort;
+    private int mPrefetchDepth;
+    private long mPrefetchMemory;
+    private int mScanBatchSize;
+    private int mScanCommitInterval;
+    private int mScanCommitRows;
+    private int mScanQueueSize;
+    private int mScanThreads;
+    private File mSnapshotFile;
     private boolean mVerbose;
+    private boolean mWatch;
+    private int mWatchDelay;
 
     public static Config getInstance() {
         return Holder.INSTANCE;
@@ -78,6 +94,34 @@ public class Config {
         return mDbMode;
     }
 
+    /**
+     * @return the maximum number of connections used by the clients
+     */
+    public int getDbPoolSize() {
+        return mDbPoolSize;
+    }
+
+    /**
+     * @return milliseconds a client waits for a connection
+     */
+    public int getDbPoolTimeout() {
+        return mDbPoolTimeout;
+    }
+
+    /**
+     * @return what happens to an image for a frame with a full queue
+     */
+    public FrameQueue.Policy getFrameQueuePolicy() {
+        return mFrameQueuePolicy;
+    }
+
+    /**
+     * @return the number of images that can wait to be written to a frame
+     */
+    public int getFrameQueueSize() {
+        return mFrameQueueSize;
+    }
+
     public File getImageDirectory() {
         return mImageDirectory;
     }
@@ -94,10 +138,75 @@ public class Config {
         return mPort;
     }
 
+    /**
+     * @return the number of RANDOM picks to keep prepared, 0 if none
+     */
+    public int getPrefetchDepth() {
+        return mPrefetchDepth;
+    }
+
+    /**
+     * @return the number of bytes of encoded picks to keep prepared
+     */
+    public long getPrefetchMemory() {
+        return mPrefetchMemory;
+    }
+
+    public int getScanBatchSize() {
+        return mScanBatchSize;
+    }
+
+    /**
+     * @return seconds between commits during UPDATE
+     */
+    public int getScanCommitInterval() {
+        return mScanCommitInterval;
+    }
+
+    /**
+     * @return rows written between commits during UPDATE
+     */
+    public int getScanCommitRows() {
+        return mScanCommitRows;
+    }
+
+    public int getScanQueueSize() {
+        return mScanQueueSize;
+    }
+
+    public int getScanThreads() {
+        return mScanThreads;
+    }
+
+    /**
+     * @return the catalog snapshot, loaded at startup before the database
+     */
+    public File getSnapshotFile() {
+        return mSnapshotFile;
+    }
+
+    /**
+     * @return milliseconds of silence before watched changes are scanned
+     */
+    public int getWatchDelay() {
+        return mWatchDelay;
+    }
+
+    /**
+     * @return true if the database is served over TCP to external tools
+     */
+    public boolean isDbServer() {
+        return mDbServer;
+    }
+
     public boolean isVerbose() {
         return mVerbose;
     }
 
+    public boolean isWatch() {
+        return mWatch;
+    }
+
     public boolean load(String filename) {
         File configFile = null;
         File configUser = new File(System.getProperty("user.home"), ".config/idd.conf");
@@ -132,11 +241,32 @@ public class Config {
                 mPort = mConfiguration.getInt("port", IddHelper.DEFAULT_PORT);
                 mCacheWidth = mConfiguration.getInt("cache_width", 2048);
                 mCacheHeight = mConfiguration.getInt("cache_height", 2048);
+                mPrefetchDepth = Math.max(0, mConfiguration.getInt("prefetch_depth", 2));
+                mPrefetchMemory = Math.max(1, mConfiguration.getLong("prefetch_memory", 32)) * 1024 * 1024;
                 mDbFile = new File(mConfiguration.getString("db_file", "idd.db"));
                 mDbMode = mConfiguration.getString("db_mode", "");
+                mDbPoolSize = Math.max(1, mConfiguration.getInt("db_pool_size", 8));
+                mDbPoolTimeout = Math.max(0, mConfiguration.getInt("db_pool_timeout", 5000));
+                mDbServer = mConfiguration.getBoolean("db_server", false);
+                mFrameQueueSize = Math.max(1, mConfiguration.getInt("frame_queue_size", 4));
+                String frameQueuePolicy = mConfiguration.getString("frame_queue_policy", FrameQueue.Policy.DROP_OLDEST.name());
+                try {
+                    mFrameQueuePolicy = FrameQueue.Policy.valueOf(frameQueuePolicy.toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException ex) {
+                    LOGGER.log(Level.WARNING, "Unknown frame_queue_policy {0}, using drop_oldest", frameQueuePolicy);
+                    mFrameQueuePolicy = FrameQueue.Policy.DROP_OLDEST;
+                }
                 mImageDirectory = new File(mConfiguration.getString("image_directory", SystemUtils.USER_HOME));
                 mImageDirectoryLevel = mImageDirectory.toPath().getNameCount();
                 mImageFormats = StringUtils.split(mConfiguration.getString("image_format", "jpeg").toLowerCase(), " ");
+                mScanThreads = Math.max(1, mConfiguration.getInt("scan_threads", Runtime.getRuntime().availableProcessors()));
+                mScanQueueSize = Math.max(1, mConfiguration.getInt("scan_queue_size", 256));
+                mScanBatchSize = Math.max(1, mConfiguration.getInt("scan_batch_size", 500));
+                mScanCommitRows = Math.max(1, mConfiguration.getInt("scan_commit_rows", 5000));
+                mScanCommitInterval = Math.max(1, mConfiguration.getInt("scan_commit_interval", 30));
+                mSnapshotFile = new File(mConfiguration.getString("snapshot_file", mDbFile.getPath() + ".snapshot"));
+                mWatch = mConfiguration.getBoolean("watch", false);
+                mWatchDelay = Math.max(0, mConfiguration.getInt("watch_delay", 2000));
                 String cachePath = mConfiguration.getString("cache_directory");
                 if (cachePath != null) {
                     mCacheDirectory = new File(cachePath);
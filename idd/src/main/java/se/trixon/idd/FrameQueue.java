@@ -0,0 +1,161 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.idd;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.logging.Logger;
+
+/**
+ * The images waiting to be written to one registered frame. They are written
+ * by the thread running the queue, a slow frame only holds up itself.
+ *
+ * @author Patrik Karlström
+ */
+public class FrameQueue implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(FrameQueue.class.getName());
+
+    private final int mCapacity;
+    private boolean mClosed;
+    private final Runnable mDisconnect;
+    private long mDropped;
+    private final String mName;
+    private final Policy mPolicy;
+    private final Deque<Runnable> mWrites = new ArrayDeque<>();
+
+    /**
+     * @param name the frame, for logging
+     * @param capacity
+     * @param policy what to do when the queue is full
+     * @param disconnect disconnects the frame
+     */
+    public FrameQueue(String name, int capacity, Policy policy, Runnable disconnect) {
+        mName = name;
+        mCapacity = capacity;
+        mPolicy = policy;
+        mDisconnect = disconnect;
+    }
+
+    /**
+     * Discards the waiting writes and stops the thread running the queue.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        mWrites.clear();
+        notifyAll();
+    }
+
+    /**
+     * @return the number of waiting writes
+     */
+    public synchronized int getDepth() {
+        return mWrites.size();
+    }
+
+    /**
+     * @return the number of writes discarded by the policy
+     */
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * Adds a write, applying the policy if the queue is full.
+     *
+     * @param write
+     * @return false if the queue is closed or the frame was disconnected
+     */
+    public boolean offer(Runnable write) {
+        synchronized (this) {
+            if (mClosed) {
+                return false;
+            }
+
+            if (mWrites.size() < mCapacity) {
+                mWrites.addLast(write);
+                notifyAll();
+                return true;
+            }
+
+            switch (mPolicy) {
+                case COALESCE:
+                    mDropped += mWrites.size();
+                    mWrites.clear();
+                    mWrites.addLast(write);
+                    return true;
+
+                case DROP_OLDEST:
+                    mDropped++;
+                    mWrites.pollFirst();
+                    mWrites.addLast(write);
+                    return true;
+
+                default:
+                    mDropped += mWrites.size() + 1;
+                    close();
+            }
+        }
+
+        LOGGER.warning(String.format("Disconnecting slow frame %s", mName));
+        mDisconnect.run();
+
+        return false;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Runnable write;
+            synchronized (this) {
+                while (mWrites.isEmpty() && !mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+
+                if (mClosed) {
+                    return;
+                }
+
+                write = mWrites.pollFirst();
+            }
+
+            write.run();
+        }
+    }
+
+    /**
+     * What happens to an image for a frame with a full queue.
+     */
+    public enum Policy {
+        /**
+         * The waiting images are replaced by the new one.
+         */
+        COALESCE,
+        /**
+         * The frame is disconnected.
+         */
+        DISCONNECT,
+        /**
+         * The oldest waiting image is replaced by the new one.
+         */
+        DROP_OLDEST;
+    }
+}
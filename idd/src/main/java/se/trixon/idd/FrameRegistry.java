@@ -0,0 +1,147 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.idd;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The registered frames. Every broadcast iterates them while frames rarely
+ * register, the registrations are copied on write and read without locking.
+ *
+ * @author Patrik Karlström
+ */
+class FrameRegistry {
+
+    private final CopyOnWriteArrayList<Registration> mRegistrations = new CopyOnWriteArrayList<>();
+
+    /**
+     * Removes the registration of client and closes its queue.
+     *
+     * @param client
+     * @return false if client was not registered
+     */
+    synchronized boolean deregister(ImageServer.ClientThread client) {
+        Registration registration = get(client);
+        if (registration == null) {
+            return false;
+        }
+
+        mRegistrations.remove(registration);
+        registration.getFrameQueue().close();
+
+        return true;
+    }
+
+    Registration get(ImageServer.ClientThread client) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mClient == client) {
+                return registration;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the current registrations, not affected by later changes
+     */
+    List<Registration> getRegistrations() {
+        return List.copyOf(mRegistrations);
+    }
+
+    boolean isEmpty() {
+        return mRegistrations.isEmpty();
+    }
+
+    /**
+     * @param client
+     * @param name
+     * @param binary true if images are sent as binary frames
+     * @param frameQueue the queue the images of client are written from
+     * @return the registration, or null if client was already registered
+     */
+    synchronized Registration register(ImageServer.ClientThread client, String name, boolean binary, FrameQueue frameQueue) {
+        if (get(client) != null) {
+            return null;
+        }
+
+        Registration registration = new Registration(client, name, binary, frameQueue);
+        mRegistrations.add(registration);
+
+        return registration;
+    }
+
+    static class Registration {
+
+        private final boolean mBinary;
+        private final AtomicLong mBytesSent = new AtomicLong();
+        private final ImageServer.ClientThread mClient;
+        private final FrameQueue mFrameQueue;
+        private final AtomicLong mImagesSent = new AtomicLong();
+        private final String mName;
+        private final long mRegistered = System.currentTimeMillis();
+
+        private Registration(ImageServer.ClientThread client, String name, boolean binary, FrameQueue frameQueue) {
+            mClient = client;
+            mName = name;
+            mBinary = binary;
+            mFrameQueue = frameQueue;
+        }
+
+        /**
+         * Counts an image written to the frame.
+         *
+         * @param bytes
+         */
+        void addSent(long bytes) {
+            mBytesSent.addAndGet(bytes);
+            mImagesSent.incrementAndGet();
+        }
+
+        long getBytesSent() {
+            return mBytesSent.get();
+        }
+
+        ImageServer.ClientThread getClient() {
+            return mClient;
+        }
+
+        FrameQueue getFrameQueue() {
+            return mFrameQueue;
+        }
+
+        long getImagesSent() {
+            return mImagesSent.get();
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        /**
+         * @return the registration time in millis
+         */
+        long getRegistered() {
+            return mRegistered;
+        }
+
+        boolean isBinary() {
+            return mBinary;
+        }
+    }
+}
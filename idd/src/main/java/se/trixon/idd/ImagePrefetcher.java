@@ -0,0 +1,191 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.idd;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import se.trixon.idd.db.ImageCatalog;
+import se.trixon.idd.db.manager.ImageManager;
+import se.trixon.idl.FrameImage;
+import se.trixon.idl.FrameImageCarrier;
+
+/**
+ * Keeps the next unfiltered RANDOM picks prepared: read from the catalog,
+ * cached at display size and hashed, and encoded if a frame needs json. The
+ * number of picks is bounded by prefetch_depth and their json by
+ * prefetch_memory. The picks are dropped when images are removed from the
+ * catalog or it is loaded again.
+ *
+ * @author Patrik Karlström
+ */
+class ImagePrefetcher implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ImagePrefetcher.class.getName());
+    private static final long RETRY_MILLIS = 10000;
+
+    private final int mDepth;
+    private final Deque<PreparedImage> mImages = new ArrayDeque<>();
+    private final Function<FrameImage, String> mImagePathProvider;
+    private long mMemory;
+    private final long mMemoryLimit;
+    private final BooleanSupplier mNeedsJson;
+    private long mVersion = -1;
+
+    /**
+     * @param depth the number of picks to keep
+     * @param memoryLimit the number of bytes of json to keep
+     * @param imagePathProvider returns the path to send, cached at display
+     * size
+     * @param needsJson true if a frame receives json
+     */
+    ImagePrefetcher(int depth, long memoryLimit, Function<FrameImage, String> imagePathProvider, BooleanSupplier needsJson) {
+        mDepth = depth;
+        mMemoryLimit = memoryLimit;
+        mImagePathProvider = imagePathProvider;
+        mNeedsJson = needsJson;
+    }
+
+    /**
+     * @return the next prepared pick, or null if none is ready
+     */
+    synchronized PreparedImage poll() {
+        dropStale(ImageCatalog.getInstance().getVersion());
+        PreparedImage preparedImage = mImages.pollFirst();
+        if (preparedImage != null) {
+            mMemory -= preparedImage.getMemory();
+            notifyAll();
+        }
+
+        return preparedImage;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                synchronized (this) {
+                    while (mImages.size() >= mDepth || mMemory >= mMemoryLimit) {
+                        wait();
+                    }
+                }
+
+                if (ImageCatalog.getInstance().getSize() == 0) {
+                    Thread.sleep(RETRY_MILLIS);
+                    continue;
+                }
+
+                long version = ImageCatalog.getInstance().getVersion();
+                FrameImage frameImage = ImageManager.getInstance().getRandomImage();
+                if (frameImage == null) {
+                    Thread.sleep(RETRY_MILLIS);
+                    continue;
+                }
+
+                PreparedImage preparedImage = new PreparedImage(frameImage, mImagePathProvider.apply(frameImage));
+                if (mNeedsJson.getAsBoolean()) {
+                    preparedImage.getJson();
+                }
+
+                synchronized (this) {
+                    dropStale(ImageCatalog.getInstance().getVersion());
+                    if (version == mVersion) {
+                        mImages.addLast(preparedImage);
+                        mMemory += preparedImage.getMemory();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException | SQLException ex) {
+                LOGGER.log(Level.WARNING, "Could not prefetch: {0}", ex.getMessage());
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException ex2) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the picks made before the catalog version changed to version.
+     */
+    private synchronized void dropStale(long version) {
+        if (version != mVersion) {
+            mImages.clear();
+            mMemory = 0;
+            mVersion = version;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A pick with its path and carriers, the json is encoded once when first
+     * needed.
+     */
+    static class PreparedImage {
+
+        private final FrameImageCarrier mBinaryCarrier;
+        private final FrameImage mFrameImage;
+        private String mJson;
+        private final String mPath;
+
+        PreparedImage(FrameImage frameImage, String path) {
+            mFrameImage = frameImage;
+            mPath = path;
+            mBinaryCarrier = new FrameImageCarrier(frameImage, path, false);
+        }
+
+        /**
+         * @return the carrier for binary frames, without base64
+         */
+        FrameImageCarrier getBinaryCarrier() {
+            return mBinaryCarrier;
+        }
+
+        FrameImage getFrameImage() {
+            return mFrameImage;
+        }
+
+        /**
+         * @return the carrier with base64 as json
+         */
+        synchronized String getJson() {
+            if (mJson == null) {
+                FrameImageCarrier frameImageCarrier = new FrameImageCarrier();
+                frameImageCarrier.setFrameImage(mFrameImage);
+                frameImageCarrier.setPath(mPath);
+                frameImageCarrier.setMd5(mBinaryCarrier.getMd5());
+                frameImageCarrier.setBase64FromPath(mPath);
+                mJson = frameImageCarrier.toJson();
+            }
+
+            return mJson;
+        }
+
+        String getPath() {
+            return mPath;
+        }
+
+        private synchronized long getMemory() {
+            return mJson == null ? 0 : mJson.length();
+        }
+    }
+}
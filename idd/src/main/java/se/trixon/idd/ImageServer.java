@@ -16,6 +16,7 @@
 package se.trixon.idd;
 
 import java.awt.Dimension;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
@@ -23,10 +24,17 @@ import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
@@ -36,6 +44,10 @@ import org.h2.store.fs.FileUtils;
 import se.trixon.almond.util.ImageScaler;
 import se.trixon.almond.util.SystemHelper;
 import se.trixon.idd.db.Db;
+import se.trixon.idd.db.DirectoryWatcher;
+import se.trixon.idd.db.ImageCatalog;
+import se.trixon.idd.db.ImageFilter;
+import se.trixon.idd.db.UpdateJob;
 import se.trixon.idd.db.manager.ImageManager;
 import se.trixon.idl.Command;
 import se.trixon.idl.FrameImage;
@@ -48,16 +60,24 @@ import se.trixon.idl.IddHelper;
  */
 class ImageServer {
 
+    private static final long CLIENT_STACK_SIZE = 256 * 1024;
     private static final Logger LOGGER = Logger.getLogger(ImageServer.class.getName());
 
-    private Set<ClientThread> mClientThreads = new HashSet<>();
+    private final ThreadFactory mClientThreadFactory = createClientThreadFactory();
+    private final Set<ClientThread> mClientThreads = ConcurrentHashMap.newKeySet();
     private final Config mConfig = Config.getInstance();
     private final Db mDb = Db.getInstance();
     private boolean mDirectKill;
+    private final FrameRegistry mFrameRegistry = new FrameRegistry();
     private final ImageManager mImageManager = ImageManager.getInstance();
+    private final ImagePrefetcher mImagePrefetcher = new ImagePrefetcher(
+            mConfig.getPrefetchDepth(),
+            mConfig.getPrefetchMemory(),
+            this::getImagePath,
+            () -> mFrameRegistry.getRegistrations().stream().anyMatch(registration -> !registration.isBinary())
+    );
     private final ImageScaler mImageScaler = ImageScaler.getInstance();
     private boolean mKillInitiated;
-    private Set<ClientThread> mRegistredFrames = new HashSet<>();
     private ServerSocket mServerSocket;
     private boolean mSuccessfulStart;
 
@@ -68,6 +88,8 @@ class ImageServer {
     ImageServer() throws IOException {
         initListeners();
         startServer();
+        startWatcher();
+        startPrefetcher();
 //        mDb.update(mConfig.getImageDirectory().getPath());
 //        System.exit(0);
         while (true) {
@@ -75,7 +97,9 @@ class ImageServer {
                 var socket = mServerSocket.accept();
                 ClientThread clientThread = new ClientThread(socket);
                 mClientThreads.add(clientThread);
-                clientThread.start();
+                Thread thread = mClientThreadFactory.newThread(clientThread);
+                thread.setName(clientThread.getName());
+                thread.start();
                 clientConnected(socket);
             } catch (IOException e) {
                 LOGGER.severe(e.getMessage());
@@ -99,6 +123,26 @@ class ImageServer {
         ));
     }
 
+    /**
+     * Blocking reads are cheap on virtual threads, they are used when the JVM
+     * has them, Java 21 and later. Otherwise platform threads with a small
+     * stack are used.
+     */
+    private ThreadFactory createClientThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            LOGGER.info("Serving clients on virtual threads");
+
+            return threadFactory;
+        } catch (ReflectiveOperationException ex) {
+            LOGGER.info("Serving clients on platform threads");
+
+            return runnable -> new Thread(null, runnable, ClientThread.class.getSimpleName(), CLIENT_STACK_SIZE);
+        }
+    }
+
     private String getImagePath(FrameImage frameImage) {
         String path = frameImage.getPath();
 
@@ -110,14 +154,21 @@ class ImageServer {
             if (cacheFile.exists()) {
                 LOGGER.info(String.format("File exists in cache: %s", cacheFile.getAbsolutePath()));
             } else {
+                File tempFile = null;
                 try {
                     var originalFile = new File(frameImage.getPath());
                     var scaledImage = mImageScaler.getScaledImage(originalFile, new Dimension(mConfig.getCacheWidth(), mConfig.getCacheHeight()));
-                    ImageIO.write(scaledImage, "jpeg", cacheFile);
+                    //The prefetcher and the commanders may generate the same file, each writes its own and renames it
+                    tempFile = File.createTempFile(frameImage.getUniqueHash(), ".tmp", mConfig.getCacheDirectory());
+                    ImageIO.write(scaledImage, "jpeg", tempFile);
+                    Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
                     path = cacheFile.getAbsolutePath();
                     LOGGER.info(String.format("File cache generated: %s", cacheFile.getAbsolutePath()));
                 } catch (IOException ex) {
                     LOGGER.severe(ex.getMessage());
+                    if (tempFile != null) {
+                        tempFile.delete();
+                    }
                 }
             }
         }
@@ -125,6 +176,29 @@ class ImageServer {
         return path;
     }
 
+    /**
+     * @return the directory to update, or null if it is not below the image
+     * directory
+     */
+    private String getUpdatePath(String[] args) {
+        Path imageDirectory = mConfig.getImageDirectory().toPath();
+
+        if (args.length == 0) {
+            return imageDirectory.toString();
+        }
+
+        try {
+            Path path = imageDirectory.resolve(args[0]).normalize();
+            if (path.startsWith(imageDirectory) && Files.isDirectory(path)) {
+                return path.toString();
+            }
+        } catch (InvalidPathException ex) {
+            //nvm
+        }
+
+        return null;
+    }
+
     private void initListeners() {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             if (mSuccessfulStart && !mKillInitiated) {
@@ -152,6 +226,14 @@ class ImageServer {
         }
     }
 
+    private void startPrefetcher() {
+        if (mConfig.getPrefetchDepth() > 0) {
+            Thread thread = new Thread(mImagePrefetcher, ImagePrefetcher.class.getSimpleName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
     private void startServer() {
         try {
             final int port = mConfig.getPort();
@@ -168,25 +250,44 @@ class ImageServer {
         }
     }
 
-    class ClientThread extends Thread {
+    private void startWatcher() {
+        if (mConfig.isWatch()) {
+            try {
+                new DirectoryWatcher().start();
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, "Could not watch the image directory", ex);
+            }
+        }
+    }
+
+    /**
+     * Reads and runs the commands of one client, on a thread from the client
+     * thread factory.
+     */
+    class ClientThread implements Runnable {
 
         private static final String OK = "OK";
 
         private BufferedReader is = null;
         private boolean mKeepReading = true;
+        private final String mName;
         private final Socket mSocket;
         private PrintStream os = null;
 
         public ClientThread(Socket clientSocket) {
-            setName(String.format("%s [%s:%d]",
+            mName = String.format("%s [%s:%d]",
                     getClass().getSimpleName(),
                     clientSocket.getInetAddress(),
                     clientSocket.getPort()
-            ));
+            );
 
             mSocket = clientSocket;
         }
 
+        public String getName() {
+            return mName;
+        }
+
         @Override
         public void run() {
             try {
@@ -201,15 +302,34 @@ class ImageServer {
                 }
 
                 clientDisconnected(mSocket);
-
-                synchronized (this) {
-                    mClientThreads.remove(this);
-                    mRegistredFrames.remove(this);
-                }
-
                 kill();
             } catch (IOException e) {
                 LOGGER.severe(e.getMessage());
+            } finally {
+                mClientThreads.remove(this);
+                mFrameRegistry.deregister(this);
+            }
+        }
+
+        private FrameQueue createFrameQueue() {
+            return new FrameQueue(mName, mConfig.getFrameQueueSize(), mConfig.getFrameQueuePolicy(), () -> {
+                try {
+                    mSocket.close();
+                } catch (IOException ex) {
+                    LOGGER.severe(ex.getMessage());
+                }
+            });
+        }
+
+        /**
+         * Deregisters and disconnects a frame that could not be written to.
+         */
+        private void dropFrame() {
+            mFrameRegistry.deregister(this);
+            try {
+                mSocket.close();
+            } catch (IOException ex) {
+                LOGGER.severe(ex.getMessage());
             }
         }
 
@@ -225,17 +345,29 @@ class ImageServer {
                 System.out.println(command);
 
                 if (command.validateArgs(args)) {
+                    ImageFilter filter;
                     String path;
                     switch (command) {
                         case CLOSE:
                             mKeepReading = false;
                             break;
 
-                        case DEREGISTER:
-                            if (mRegistredFrames.contains(this)) {
-                                if (mRegistredFrames.remove(this)) {
-                                    send("deregistered");
+                        case COUNT:
+                            filter = parseFilter(cmd, args);
+                            if (filter != null) {
+                                try {
+                                    send(String.format("count: %d", ImageCatalog.getInstance().count(filter)));
+                                    send(OK);
+                                } catch (SQLException ex) {
+                                    send(String.format("ACK [52@0] {%s} %s", cmd, ex.getMessage()));
+                                    LOGGER.log(Level.SEVERE, null, ex);
                                 }
+                            }
+                            break;
+
+                        case DEREGISTER:
+                            if (mFrameRegistry.deregister(this)) {
+                                send("deregistered");
                             } else {
                                 send("Nothing to do, not registered");
                             }
@@ -243,6 +375,31 @@ class ImageServer {
                             send(OK);
                             break;
 
+                        case FACETS:
+                            ImageFilter.Field field;
+                            try {
+                                field = ImageFilter.Field.valueOf(args[0].toUpperCase(Locale.ROOT));
+                            } catch (IllegalArgumentException ex) {
+                                send(String.format("ACK [2@0] {%s} unknown field \"%s\"", cmd, args[0]));
+                                break;
+                            }
+                            filter = parseFilter(cmd, ArrayUtils.remove(args, 0));
+                            if (filter != null) {
+                                try {
+                                    for (Map.Entry<String, Integer> entry : ImageCatalog.getInstance().getFacets(field, filter).entrySet()) {
+                                        send(String.format("%s: %s", args[0].toLowerCase(Locale.ROOT), entry.getKey()));
+                                        send(String.format("count: %d", entry.getValue()));
+                                    }
+                                    send(OK);
+                                } catch (IllegalArgumentException ex) {
+                                    send(String.format("ACK [2@0] {%s} %s", cmd, ex.getMessage()));
+                                } catch (SQLException ex) {
+                                    send(String.format("ACK [52@0] {%s} %s", cmd, ex.getMessage()));
+                                    LOGGER.log(Level.SEVERE, null, ex);
+                                }
+                            }
+                            break;
+
                         case KILL:
                             shutdown();
                             break;
@@ -252,34 +409,91 @@ class ImageServer {
                             break;
 
                         case RANDOM:
+                            filter = parseFilter(cmd, args);
+                            if (filter == null) {
+                                break;
+                            }
+                            if (mFrameRegistry.isEmpty()) {
+                                //Leave the prepared picks for the frames to come
+                                send("Nothing to do, no registered frames");
+                                send(OK);
+                                break;
+                            }
                             try {
-                            sendImage(mImageManager.getRandomImage());
-                        } catch (NullPointerException | SQLException ex) {
-                            send("ex.getMessage()");
-                            LOGGER.log(Level.SEVERE, null, ex);
-                        }
-                        break;
+                                ImagePrefetcher.PreparedImage preparedImage = filter.isEmpty() ? mImagePrefetcher.poll() : null;
+                                if (preparedImage == null) {
+                                    FrameImage frameImage = mImageManager.getRandomImage(filter);
+                                    preparedImage = new ImagePrefetcher.PreparedImage(frameImage, getImagePath(frameImage));
+                                }
+                                sendImage(preparedImage);
+                            } catch (NullPointerException | SQLException ex) {
+                                send("ex.getMessage()");
+                                LOGGER.log(Level.SEVERE, null, ex);
+                            }
+                            break;
+
+                        case REBUILD:
+                            sendUpdateJob(mDb.startRebuild());
+                            break;
 
                         case REGISTER:
-                            if (!mRegistredFrames.contains(this)) {
-                                if (mRegistredFrames.add(this)) {
-                                    send("registered");
+                            if (args.length == 1 && !IddHelper.FRAME_IMAGE_FORMAT_BINARY.equalsIgnoreCase(args[0])) {
+                                send(String.format("ACK [2@0] {%s} unknown frame format \"%s\"", cmd, args[0]));
+                                break;
+                            }
+                            //Images are written once the replies are
+                            synchronized (os) {
+                                if (mFrameRegistry.get(this) == null) {
+                                    FrameQueue frameQueue = createFrameQueue();
+                                    if (mFrameRegistry.register(this, mName, args.length == 1, frameQueue) != null) {
+                                        Thread thread = mClientThreadFactory.newThread(frameQueue);
+                                        thread.setName(mName + " writer");
+                                        thread.start();
+                                        send("registered");
+                                    }
+                                } else {
+                                    send("Nothing to do, already registered");
                                 }
-                            } else {
-                                send("Nothing to do, already registered");
+                                send(OK);
+                            }
+                            break;
+
+                        case STATS:
+                            List<FrameRegistry.Registration> registrations = mFrameRegistry.getRegistrations();
+                            send(String.format("clients: %d", mClientThreads.size()));
+                            send(String.format("frames: %d", registrations.size()));
+                            for (FrameRegistry.Registration registration : registrations) {
+                                FrameQueue frameQueue = registration.getFrameQueue();
+                                send(String.format("frame: %s", registration.getName()));
+                                send(String.format("format: %s", registration.isBinary() ? IddHelper.FRAME_IMAGE_FORMAT_BINARY : "json"));
+                                send(String.format("registered: %s", IddHelper.millisToDateTime(registration.getRegistered())));
+                                send(String.format("images_sent: %d", registration.getImagesSent()));
+                                send(String.format("bytes_sent: %d", registration.getBytesSent()));
+                                send(String.format("queue_depth: %d", frameQueue.getDepth()));
+                                send(String.format("dropped: %d", frameQueue.getDropped()));
+                            }
+                            send(OK);
+                            break;
+
+                        case STATUS:
+                            send(mDb.getConnectionPool().getStatus());
+                            UpdateJob updateJob = mDb.getUpdateJob();
+                            if (updateJob != null && !updateJob.isDone()) {
+                                send(String.format("updating_db: %d", updateJob.getId()));
+                            }
+                            if (updateJob != null) {
+                                send(updateJob.getStatus());
                             }
                             send(OK);
                             break;
 
                         case UPDATE:
-                            if (args.length > 0) {
-                                path = args[0];
-                            } else {
-                                path = mConfig.getImageDirectory().getPath();
+                            path = getUpdatePath(args);
+                            if (path == null) {
+                                send(String.format("ACK [50@0] {%s} not a directory below the image directory \"%s\"", cmd, args[0]));
+                                break;
                             }
-                            String response = mDb.update(path);
-                            send(response);
-                            System.out.println(response);
+                            sendUpdateJob(mDb.startUpdate(path));
                             break;
 
                         case VERSION:
@@ -297,29 +511,109 @@ class ImageServer {
             }
         }
 
+        /**
+         * @return the filter, or null if a term is not valid, which has been
+         * answered
+         */
+        private ImageFilter parseFilter(String cmd, String[] args) {
+            try {
+                return ImageFilter.parse(args);
+            } catch (IllegalArgumentException ex) {
+                send(String.format("ACK [2@0] {%s} %s", cmd, ex.getMessage()));
+                return null;
+            }
+        }
+
         private void send(String s) {
             os.println(s);
         }
 
-        private void sendImage(FrameImage frameImage) {
-            if (mRegistredFrames.isEmpty()) {
+        /**
+         * Writes to the socket, the print stream would hide a failed write.
+         *
+         * @return the number of bytes written, 0 if it failed
+         */
+        private long sendFrame(FrameImageCarrier frameImageCarrier) {
+            synchronized (os) {
+                try {
+                    os.flush();
+                    return frameImageCarrier.writeFrame(new BufferedOutputStream(mSocket.getOutputStream()));
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, String.format("Could not send frame to %s", mName), ex);
+                    dropFrame();
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * @return false if it failed
+         */
+        private boolean sendFrameJson(String json) {
+            synchronized (os) {
+                send(IddHelper.FRAME_IMAGE_BEG);
+                send(json);
+                send(IddHelper.FRAME_IMAGE_END);
+                if (os.checkError()) {
+                    LOGGER.severe(String.format("Could not send frame to %s", mName));
+                    dropFrame();
+                    return false;
+                }
+
+                return true;
+            }
+        }
+
+        private void sendImage(ImagePrefetcher.PreparedImage preparedImage) {
+            List<FrameRegistry.Registration> registrations = mFrameRegistry.getRegistrations();
+
+            if (registrations.isEmpty()) {
                 String s = "Nothing to do, no registered frames";
                 System.out.println(s);
                 send(s);
             } else {
-                //System.out.println(frameImage);
+                //System.out.println(preparedImage.getFrameImage());
 
-                FrameImageCarrier frameImageCarrier = new FrameImageCarrier(frameImage, getImagePath(frameImage));
-                String json = frameImageCarrier.toJson();
+                String json = null;
+                long jsonBytes = 0;
 
-                for (ClientThread frameThread : mRegistredFrames) {
-                    frameThread.send(IddHelper.FRAME_IMAGE_BEG);
-                    frameThread.send(json);
-                    frameThread.send(IddHelper.FRAME_IMAGE_END);
+                for (FrameRegistry.Registration registration : registrations) {
+                    ClientThread frameThread = registration.getClient();
+
+                    if (registration.isBinary()) {
+                        FrameImageCarrier frameImageCarrier = preparedImage.getBinaryCarrier();
+                        registration.getFrameQueue().offer(() -> {
+                            long bytes = frameThread.sendFrame(frameImageCarrier);
+                            if (bytes > 0) {
+                                registration.addSent(bytes);
+                            }
+                        });
+                    } else {
+                        if (json == null) {
+                            json = preparedImage.getJson();
+                            jsonBytes = String.join("\n", IddHelper.FRAME_IMAGE_BEG, json, IddHelper.FRAME_IMAGE_END, "").getBytes().length;
+                        }
+                        String frameJson = json;
+                        long frameJsonBytes = jsonBytes;
+                        registration.getFrameQueue().offer(() -> {
+                            if (frameThread.sendFrameJson(frameJson)) {
+                                registration.addSent(frameJsonBytes);
+                            }
+                        });
+                    }
                 }
             }
 
-            send(OK); //Send OK to Commander
+            send(OK); //Send OK to Commander, the frames are written by their queues
+        }
+
+        private void sendUpdateJob(UpdateJob updateJob) {
+            if (updateJob == null) {
+                send("ACK Update already in progress");
+            } else {
+                send(String.format("updating_db: %d", updateJob.getId()));
+                send(OK);
+            }
         }
 
         void kill() throws IOException {
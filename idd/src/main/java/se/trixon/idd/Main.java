@@ -29,6 +29,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import se.trixon.almond.util.SystemHelper;
 import se.trixon.idd.db.Db;
+import se.trixon.idd.db.ImageCatalog;
 import se.trixon.idl.IddHelper;
 
 /**
@@ -70,33 +71,38 @@ public class Main {
                 String filename = commandLine.getArgs().length > 0 ? commandLine.getArgs()[0] : null;
                 if (mConfig.load(filename)) {
                     LOGGER.info(Db.getInstance().getConnString());
-                    org.h2.tools.Server.createTcpServer("-tcpAllowOthers", "-ifNotExists").start();
-                    if (Db.getInstance().getAutoCommitConnection() == null) {
+                    if (mConfig.isDbServer()) {
+                        //For external tools, they can not create new databases
+                        org.h2.tools.Server.createTcpServer("-tcpAllowOthers", "-ifExists").start();
+                    }
+                    if (ImageCatalog.getInstance().loadSnapshot()) {
+                        //RANDOM is served from the snapshot until the database is open
+                        Db.getInstance().startUpgrade();
+                    } else if (!Db.getInstance().isConnectable()) {
                         LOGGER.info("Shutting down");
                         System.exit(1);
                     } else {
-                        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                            try {
-                                Db.getInstance().getConnection().close();
-                            } catch (NullPointerException | SQLException ex) {
-                                //nvm
-                            }
-                            try {
-                                Db.getInstance().getAutoCommitConnection().close();
-                            } catch (NullPointerException | SQLException ex) {
-                                //nvm
-                            }
-                        }));
-
-                        ImageServer.enterLoop();
-                        //Unreachable statement
+                        Db.getInstance().upgrade();
                     }
+
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        ImageCatalog.getInstance().writeSnapshot();
+                        try {
+                            Db.getInstance().getConnection().close();
+                        } catch (NullPointerException | SQLException ex) {
+                            //nvm
+                        }
+                        Db.getInstance().getConnectionPool().close();
+                    }));
+
+                    ImageServer.enterLoop();
+                    //Unreachable statement
                 }
             }
         } catch (ParseException ex) {
             System.out.println(ex.getMessage());
             System.out.println(mBundle.getString("parse_help"));
-        } catch (SQLException ex) {
+        } catch (ClassNotFoundException | SQLException ex) {
             Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
@@ -15,14 +15,8 @@
  */
 package se.trixon.idd;
 
-import com.healthmarketscience.sqlbuilder.CustomSql;
-import com.healthmarketscience.sqlbuilder.FunctionCall;
-import com.healthmarketscience.sqlbuilder.SelectQuery;
-import com.healthmarketscience.sqlbuilder.custom.postgresql.PgLimitClause;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbTable;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import se.trixon.almond.util.Xlog;
 import se.trixon.idd.db.Db;
 import se.trixon.idd.db.manager.AlbumManager;
@@ -69,45 +63,9 @@ public class Querator {
     }
 
     public String getRandomPath() {
-        FunctionCall randomFunctionCall = new FunctionCall("random");
-        SelectQuery selectQuery = new SelectQuery()
-                .addColumns(
-                        mAlbumRootManager.columns().getSpecificPath(),
-                        mAlbumManager.columns().getRelativePath(),
-                        mImageManager.columns().getName(),
-                        mImageManager.columns().getId()
-                )
-                .addCustomColumns(randomFunctionCall)
-                .addJoin(SelectQuery.JoinType.INNER,
-                        mImageTable,
-                        mAlbumTable,
-                        mImageManager.columns().getAlbumId(),
-                        mAlbumManager.getId()
-                )
-                .addJoin(SelectQuery.JoinType.INNER,
-                        mAlbumTable,
-                        mAlbumRootTable,
-                        mAlbumManager.columns().getAlbumRootId(),
-                        mAlbumRootManager.getId()
-                )
-                .addCustomOrderings(new CustomSql("random()"))
-                .addCustomization(new PgLimitClause(1))
-                .validate();
-
-        String sql = selectQuery.toString();
-//        System.out.println(sql);
-
         String path = null;
-        try (Statement statement = mDb.getAutoCommitConnection().createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE)) {
-            ResultSet rs = statement.executeQuery(sql);
-            rs.first();
-            long id = rs.getLong(4);
-            mImageManager.getImage(id);
-            path = String.format("%s%s/%s",
-                    rs.getString(1),
-                    rs.getString(2),
-                    rs.getString(3)
-            );
+        try {
+            path = mImageManager.getRandomImage().getPath();
         } catch (NullPointerException | SQLException ex) {
             //Logger.getLogger(Querator.class.getName()).log(Level.SEVERE, null, ex);
             Xlog.timedErr("dbError: getRandomPath");
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.idd.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of auto commit connections for the client threads.
+ *
+ * A connection is only validated when it has been idle for a while, not on
+ * every borrow. Borrowers wait at most db_pool_timeout milliseconds for a
+ * connection. Each connection keeps the read statements prepared on it.
+ *
+ * @author Patrik Karlström
+ */
+public class ConnectionPool {
+
+    private static final long IDLE_VALIDATION_MILLIS = 30_000;
+    private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());
+
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicLong mBorrowCount = new AtomicLong();
+    private volatile boolean mClosed;
+    private final String mConnString;
+    private final BlockingDeque<PooledConnection> mIdleConnections = new LinkedBlockingDeque<>();
+    private final AtomicInteger mOpen = new AtomicInteger();
+    private final Semaphore mPermits;
+    private volatile String mSchema;
+    private final int mSize;
+    private final long mTimeout;
+    private final AtomicLong mTimeoutCount = new AtomicLong();
+    private final AtomicLong mWaitNanos = new AtomicLong();
+
+    /**
+     * @param connString
+     * @param size the maximum number of connections
+     * @param timeout milliseconds to wait for a connection
+     */
+    public ConnectionPool(String connString, int size, long timeout) {
+        mConnString = connString;
+        mSize = size;
+        mTimeout = timeout;
+        mPermits = new Semaphore(size, true);
+    }
+
+    /**
+     * Borrows a connection, close it to return it to the pool.
+     *
+     * @return a connection using the current schema
+     * @throws SQLException if no connection could be opened or none was
+     * returned within the timeout
+     */
+    public PooledConnection borrow() throws SQLException {
+        return borrow(mSchema);
+    }
+
+    /**
+     * Borrows a connection, close it to return it to the pool.
+     *
+     * @param schema the schema to use, the current schema if null
+     * @return
+     * @throws SQLException if no connection could be opened or none was
+     * returned within the timeout
+     */
+    public PooledConnection borrow(String schema) throws SQLException {
+        if (schema == null) {
+            schema = mSchema;
+        }
+
+        if (mClosed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        long startTime = System.nanoTime();
+        try {
+            if (!mPermits.tryAcquire(mTimeout, TimeUnit.MILLISECONDS)) {
+                mTimeoutCount.incrementAndGet();
+                throw new SQLTimeoutException(String.format("No database connection available within %d ms", mTimeout));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", ex);
+        } finally {
+            mWaitNanos.addAndGet(System.nanoTime() - startTime);
+        }
+
+        PooledConnection pooledConnection = null;
+        try {
+            while ((pooledConnection = mIdleConnections.pollFirst()) != null && !pooledConnection.validate()) {
+                pooledConnection.discard();
+            }
+
+            if (pooledConnection == null) {
+                pooledConnection = open();
+            }
+
+            pooledConnection.useSchema(schema);
+            pooledConnection.mBorrowed = true;
+            mActive.incrementAndGet();
+            mBorrowCount.incrementAndGet();
+
+            return pooledConnection;
+        } catch (SQLException | RuntimeException ex) {
+            if (pooledConnection != null) {
+                pooledConnection.discard();
+            }
+            mPermits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Closes the idle connections, borrowed connections are closed when they
+     * are returned.
+     */
+    public void close() {
+        mClosed = true;
+
+        PooledConnection pooledConnection;
+        while ((pooledConnection = mIdleConnections.pollFirst()) != null) {
+            pooledConnection.discard();
+        }
+    }
+
+    public int getActive() {
+        return mActive.get();
+    }
+
+    public long getBorrowCount() {
+        return mBorrowCount.get();
+    }
+
+    public int getIdle() {
+        return mIdleConnections.size();
+    }
+
+    public int getOpen() {
+        return mOpen.get();
+    }
+
+    public String getSchema() {
+        return mSchema;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the status lines of this pool, one "key: value" per line
+     */
+    public String getStatus() {
+        long borrowCount = getBorrowCount();
+
+        return new StringBuilder()
+                .append("pool_size: ").append(mSize).append("\n")
+                .append("pool_open: ").append(getOpen()).append("\n")
+                .append("pool_active: ").append(getActive()).append("\n")
+                .append("pool_idle: ").append(getIdle()).append("\n")
+                .append("pool_waiting: ").append(getWaiting()).append("\n")
+                .append("pool_borrows: ").append(borrowCount).append("\n")
+                .append("pool_timeouts: ").append(getTimeoutCount()).append("\n")
+                .append("pool_wait_ms: ").append(borrowCount > 0 ? TimeUnit.NANOSECONDS.toMillis(mWaitNanos.get()) / borrowCount : 0)
+                .toString();
+    }
+
+    public long getTimeoutCount() {
+        return mTimeoutCount.get();
+    }
+
+    /**
+     * @return the number of threads waiting for a connection
+     */
+    public int getWaiting() {
+        return mPermits.getQueueLength();
+    }
+
+    /**
+     * Sets the schema of the catalog, borrowed connections are switched when
+     * they are borrowed the next time.
+     *
+     * @param schema
+     */
+    public void setSchema(String schema) {
+        mSchema = schema;
+    }
+
+    private PooledConnection open() throws SQLException {
+        try {
+            Class.forName("org.h2.Driver");
+        } catch (ClassNotFoundException ex) {
+            throw new SQLException(ex);
+        }
+
+        PooledConnection pooledConnection = new PooledConnection(DriverManager.getConnection(mConnString));
+        mOpen.incrementAndGet();
+
+        return pooledConnection;
+    }
+
+    private void release(PooledConnection pooledConnection) {
+        if (!pooledConnection.mBorrowed) {
+            return;
+        }
+
+        pooledConnection.mBorrowed = false;
+        mActive.decrementAndGet();
+
+        if (mClosed) {
+            pooledConnection.discard();
+        } else {
+            pooledConnection.mReleaseTime = System.currentTimeMillis();
+            //Last in first out, the least used connections become idle long enough to be validated
+            mIdleConnections.offerFirst(pooledConnection);
+        }
+
+        mPermits.release();
+    }
+
+    /**
+     * A borrowed connection, close it to return it to the pool.
+     */
+    public class PooledConnection implements AutoCloseable {
+
+        private boolean mBorrowed;
+        private final Connection mConnection;
+        private long mReleaseTime = System.currentTimeMillis();
+        private String mSchema;
+        private final Map<String, PreparedStatement> mStatements = new HashMap<>();
+
+        private PooledConnection(Connection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        public Connection getConnection() {
+            return mConnection;
+        }
+
+        /**
+         * Returns a read only, forward only statement prepared once on this
+         * connection.
+         *
+         * @param key identifies the statement on this connection
+         * @param sqlSupplier builds the sql when the statement is prepared
+         * @return
+         * @throws SQLException
+         */
+        public PreparedStatement getStatement(String key, Supplier<String> sqlSupplier) throws SQLException {
+            PreparedStatement statement = mStatements.get(key);
+
+            if (statement == null) {
+                statement = mConnection.prepareStatement(sqlSupplier.get(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                mStatements.put(key, statement);
+            }
+
+            return statement;
+        }
+
+        private void closeStatements() {
+            for (PreparedStatement statement : mStatements.values()) {
+                try {
+                    statement.close();
+                } catch (SQLException ex) {
+                    //nvm
+                }
+            }
+
+            mStatements.clear();
+        }
+
+        private void discard() {
+            closeStatements();
+            try {
+                mConnection.close();
+            } catch (SQLException ex) {
+                //nvm
+            }
+            mOpen.decrementAndGet();
+        }
+
+        private void useSchema(String schema) throws SQLException {
+            if (schema != null && !schema.equals(mSchema)) {
+                closeStatements();
+                mConnection.setSchema(schema);
+                mSchema = schema;
+            }
+        }
+
+        private boolean validate() {
+            if (System.currentTimeMillis() - mReleaseTime < IDLE_VALIDATION_MILLIS) {
+                return true;
+            }
+
+            try {
+                return mConnection.isValid(2);
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "Database connection lost", ex);
+                return false;
+            }
+        }
+    }
+}
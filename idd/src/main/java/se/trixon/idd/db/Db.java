@@ -15,50 +15,123 @@
  */
 package se.trixon.idd.db;
 
+import com.healthmarketscience.sqlbuilder.AlterTableQuery;
 import com.healthmarketscience.sqlbuilder.CreateTableQuery;
+import com.healthmarketscience.sqlbuilder.dbspec.basic.DbColumn;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbConstraint;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbSchema;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbSpec;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbTable;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileVisitOption;
-import java.nio.file.Files;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.EnumSet;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import org.h2.api.ErrorCode;
 import se.trixon.idd.Config;
+import se.trixon.idd.db.ConnectionPool.PooledConnection;
+import se.trixon.idl.IddHelper;
 
 /**
+ *
+ * The catalog tables live in one of two schemas, PUBLIC or SHADOW. A rebuild
+ * is written into the other schema and the connections are switched to it
+ * when the rebuild is done, readers holding the catalog read lock never see a
+ * half built catalog.
  *
  * @author Patrik Karlström
  */
 public class Db {
 
     private static final Logger LOGGER = Logger.getLogger(Db.class.getName());
+    private static final Pattern LOOPBACK_DB_MODE = Pattern.compile("tcp://(localhost|127(\\.\\d{1,3}){3}|\\[::1\\])(:\\d+)?/", Pattern.CASE_INSENSITIVE);
+    private static final String SCHEMA_PUBLIC = "PUBLIC";
+    private static final String SCHEMA_SHADOW = "SHADOW";
     private static final Config mConfig = Config.getInstance();
 
-    private Connection mAutoCommitConnection = null;
-    private final String mConnString = String.format("jdbc:h2:%s%s;DEFRAG_ALWAYS=true", mConfig.getDbMode(), mConfig.getDbFile().getAbsolutePath());
+    private final ReadWriteLock mCatalogLock = new ReentrantReadWriteLock();
+    private volatile String mCatalogSchema;
+    private final String mConnString;
     private Connection mConnection = null;
+    private final ConnectionPool mConnectionPool;
+    private final CountDownLatch mOpened = new CountDownLatch(1);
     private DbSchema mSchema;
     private final DbSpec mSpec;
-    private boolean mUpdating;
+    private final ExecutorService mUpdateExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "UpdateJob");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile UpdateJob mUpdateJob;
+    private final AtomicLong mUpdateJobIds = new AtomicLong();
 
     public static Db getInstance() {
         return Holder.INSTANCE;
     }
 
     private Db() {
+        mConnString = createConnString();
+        mConnectionPool = new ConnectionPool(mConnString, mConfig.getDbPoolSize(), mConfig.getDbPoolTimeout());
         mSpec = new DbSpec();
         init();
     }
 
+    /**
+     * Adds column to the existing table.
+     *
+     * @param table
+     * @param column
+     * @throws SQLException
+     */
+    public void addColumn(DbTable table, DbColumn column) throws SQLException {
+        try (Statement statement = getConnection().createStatement()) {
+            String sql = new AlterTableQuery(table).setAddColumn(column).validate().toString();
+            //System.out.println(sql);
+            statement.execute(sql);
+        }
+    }
+
+    /**
+     * Borrows an auto commit connection to the catalog, close it to return it.
+     *
+     * @return
+     * @throws SQLException if no connection was available within
+     * db_pool_timeout
+     */
+    public PooledConnection borrowConnection() throws SQLException {
+        if (mConnectionPool.getSchema() == null) {
+            try (PooledConnection connection = mConnectionPool.borrow()) {
+                mConnectionPool.setSchema(getCatalogSchema(connection.getConnection()));
+            }
+        }
+
+        return mConnectionPool.borrow();
+    }
+
+    /**
+     * Borrows an auto commit connection to schema, close it to return it.
+     *
+     * @param schema the schema, the catalog if null
+     * @return
+     * @throws SQLException if no connection was available within
+     * db_pool_timeout
+     */
+    public PooledConnection borrowConnection(String schema) throws SQLException {
+        return schema == null ? borrowConnection() : mConnectionPool.borrow(schema);
+    }
+
     public void connectionCommit() throws ClassNotFoundException, SQLException {
         getConnection().commit();
     }
@@ -66,12 +139,14 @@ public class Db {
     public void connectionOpen() throws ClassNotFoundException, SQLException {
         if (mConnection != null && !mConnection.isClosed()) {
             connectionCommit();
-            //mConnection.close();
+            //The managers keep prepared statements on this connection
+            return;
         }
 
         Class.forName("org.h2.Driver");
         mConnection = DriverManager.getConnection(mConnString);
         mConnection.setAutoCommit(false);
+        mConnection.setSchema(getCatalogSchema(mConnection));
         //LOGGER.log(Level.INFO, "JDBC Connect: {0}", mConnString);
     }
 
@@ -110,6 +185,20 @@ public class Db {
         return tableCreated;
     }
 
+    public void createIndex(DbTable table, String indexName, DbColumn... columns) throws SQLException {
+        StringBuilder builder = new StringBuilder();
+        for (DbColumn column : columns) {
+            builder.append(builder.length() == 0 ? "" : ", ").append(column.getName());
+        }
+
+        try (Statement statement = getConnection().createStatement()) {
+            String sql = String.format("CREATE INDEX IF NOT EXISTS %s ON %s(%s);", indexName, table.getName(), builder);
+            //System.out.println(sql);
+
+            statement.execute(sql);
+        }
+    }
+
     public void drop(DbTable table, boolean cascade) throws ClassNotFoundException, SQLException {
         try (Statement statement = getConnection().createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE)) {
             String sql = String.format("DROP TABLE IF EXISTS %s %s;", table.getName(), cascade ? "CASCADE" : "");
@@ -126,22 +215,26 @@ public class Db {
         }
     }
 
-    public Connection getAutoCommitConnection() {
-        try {
-            if (mAutoCommitConnection == null || mAutoCommitConnection.isClosed()) {
-                Class.forName("org.h2.Driver");
-                mAutoCommitConnection = DriverManager.getConnection(mConnString);
-            } else {
-                if (!mAutoCommitConnection.isValid(2)) {
-                    mAutoCommitConnection = null;
-                    LOGGER.severe("Database connection lost");
-                }
-            }
-        } catch (ClassNotFoundException | SQLException ex) {
-            LOGGER.severe(ex.getMessage());
+    public boolean exists(DbTable table) throws SQLException {
+        try (ResultSet rs = getConnection().getMetaData().getTables(null, getConnection().getSchema(), table.getName().toUpperCase(Locale.ROOT), null)) {
+            return rs.next();
+        }
+    }
+
+    public boolean exists(DbTable table, DbColumn column) throws SQLException {
+        try (ResultSet rs = getConnection().getMetaData().getColumns(null, getConnection().getSchema(), table.getName().toUpperCase(Locale.ROOT), column.getName().toUpperCase(Locale.ROOT))) {
+            return rs.next();
         }
+    }
 
-        return mAutoCommitConnection;
+    /**
+     * Hold the read lock while running queries that depend on each other, the
+     * catalog is not switched in between.
+     *
+     * @return the lock guarding the catalog switch of a rebuild
+     */
+    public ReadWriteLock getCatalogLock() {
+        return mCatalogLock;
     }
 
     public String getConnString() {
@@ -152,48 +245,318 @@ public class Db {
         return mConnection;
     }
 
+    public ConnectionPool getConnectionPool() {
+        return mConnectionPool;
+    }
+
     public DbSpec getSpec() {
         return mSpec;
     }
 
+    /**
+     * @return the running or the last update job, null if none
+     */
+    public UpdateJob getUpdateJob() {
+        return mUpdateJob;
+    }
+
+    /**
+     * @return true if a connection to the catalog could be opened
+     */
+    public boolean isConnectable() {
+        try (PooledConnection connection = borrowConnection()) {
+            return true;
+        } catch (SQLException ex) {
+            LOGGER.severe(ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return true when the catalog has been opened and upgraded
+     */
+    public boolean isOpen() {
+        return mOpened.getCount() == 0;
+    }
+
     public boolean isUpdating() {
-        return mUpdating;
+        UpdateJob updateJob = mUpdateJob;
+
+        return updateJob != null && !updateJob.isDone();
     }
 
-    public void setUpdating(boolean updating) {
-        mUpdating = updating;
+    /**
+     * Starts rebuilding the catalog from the image directory in the
+     * background, the current catalog is used until the rebuild is done.
+     *
+     * @return the started job, or null if an update is already in progress
+     */
+    public UpdateJob startRebuild() {
+        UpdateJob updateJob = createUpdateJob(mConfig.getImageDirectory().getPath(), true);
+
+        if (updateJob != null) {
+            mUpdateExecutor.execute(() -> {
+                LOGGER.info(rebuild(updateJob));
+            });
+        }
+
+        return updateJob;
     }
 
-    public String update(String path) {
-        String resultMessage = null;
+    /**
+     * Starts updating path in the background.
+     *
+     * @param path
+     * @return the started job, or null if an update is already in progress
+     */
+    public UpdateJob startUpdate(String path) {
+        UpdateJob updateJob = createUpdateJob(path, false);
 
-        if (isUpdating()) {
-            resultMessage = "ACK Update already in progress";
-        } else {
+        if (updateJob != null) {
+            mUpdateExecutor.execute(() -> {
+                LOGGER.info(update(updateJob));
+            });
+        }
+
+        return updateJob;
+    }
+
+    /**
+     * Opens the catalog with {@link #upgrade()} in the background, ahead of any
+     * update job. IDD exits if it can not be opened.
+     */
+    public void startUpgrade() {
+        mUpdateExecutor.execute(() -> {
             try {
-                setUpdating(true);
-                connectionOpen();
-                DbCreator.getInstance().initDb();
-                EnumSet<FileVisitOption> fileVisitOptions = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
-                FileVisitor fileVisitor = new FileVisitor();
-                Files.walkFileTree(new File(path).toPath(), fileVisitOptions, Integer.MAX_VALUE, fileVisitor);
-                connectionCommit();
-                resultMessage = "ACK Update done";
-            } catch (ClassNotFoundException | SQLException | IOException ex) {
+                if (isConnectable()) {
+                    upgrade();
+                    return;
+                }
+            } catch (ClassNotFoundException | SQLException ex) {
                 LOGGER.log(Level.SEVERE, null, ex);
-                resultMessage = "ACK Update failed";
-            } finally {
-                setUpdating(false);
             }
+
+            LOGGER.info("Shutting down");
+            IddHelper.exit(1);
+        });
+    }
+
+    /**
+     * Updates path in the calling thread.
+     *
+     * @param path
+     * @return the result message
+     */
+    public String update(String path) {
+        try {
+            mOpened.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return "ACK Update interrupted";
         }
 
-        return resultMessage;
+        UpdateJob updateJob = createUpdateJob(path, false);
+
+        return updateJob == null ? "ACK Update already in progress" : update(updateJob);
+    }
+
+    /**
+     * Creates the catalog tables or migrates them to the current schema
+     * version and loads the {@link ImageCatalog}, done at startup.
+     *
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public void upgrade() throws ClassNotFoundException, SQLException {
+        connectionOpen();
+        try {
+            DbCreator.getInstance().upgradeDb();
+        } catch (ClassNotFoundException | SQLException | RuntimeException ex) {
+            connectionRollback();
+            throw ex;
+        }
+
+        mOpened.countDown();
+        ImageCatalog.getInstance().reload();
+    }
+
+    /**
+     * A tcp db_mode pointing at this host is replaced by opening the database
+     * in-process, unless another process holds it. The in-process database is
+     * kept open until shutdown. The process holding the database has to serve
+     * it at db_mode, if it does not the database can not be opened.
+     */
+    private String createConnString() {
+        String dbMode = mConfig.getDbMode();
+        String dbPath = mConfig.getDbFile().getAbsolutePath();
+        String configuredConnString = String.format("jdbc:h2:%s%s;DEFRAG_ALWAYS=true", dbMode, dbPath);
+
+        if (!LOOPBACK_DB_MODE.matcher(dbMode).matches()) {
+            return configuredConnString;
+        }
+
+        String embeddedConnString = String.format("jdbc:h2:%s;DB_CLOSE_DELAY=-1;DEFRAG_ALWAYS=true", dbPath);
+        try {
+            Class.forName("org.h2.Driver");
+            try (Connection connection = DriverManager.getConnection(embeddedConnString)) {
+                LOGGER.log(Level.INFO, "Opening the database in-process instead of through {0}", dbMode);
+                return embeddedConnString;
+            }
+        } catch (ClassNotFoundException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            return embeddedConnString;
+        } catch (SQLException ex) {
+            if (ex.getErrorCode() != ErrorCode.DATABASE_ALREADY_OPEN_1) {
+                //Opening it again reports the error
+                LOGGER.log(Level.SEVERE, "Could not open the database: {0}", ex.getMessage());
+                return embeddedConnString;
+            }
+        }
+
+        LOGGER.log(Level.WARNING, "Database in use by another process, connecting through {0}", dbMode);
+        try (Connection connection = DriverManager.getConnection(configuredConnString)) {
+            return configuredConnString;
+        } catch (SQLException ex) {
+            LOGGER.log(Level.SEVERE, "Database in use by another process that does not serve it at {0}: {1}", new Object[]{dbMode, ex.getMessage()});
+            return configuredConnString;
+        }
+    }
+
+    private synchronized UpdateJob createUpdateJob(String path, boolean rebuild) {
+        if (isUpdating()) {
+            return null;
+        }
+
+        mUpdateJob = new UpdateJob(mUpdateJobIds.incrementAndGet(), path, rebuild);
+
+        return mUpdateJob;
+    }
+
+    /**
+     * @return the schema of the catalog in use, stored in PUBLIC.catalog
+     */
+    private String getCatalogSchema(Connection connection) {
+        if (mCatalogSchema == null) {
+            try (Statement statement = connection.createStatement()) {
+                ResultSet rs = statement.executeQuery("SELECT schema_name FROM PUBLIC.catalog;");
+                mCatalogSchema = rs.next() ? rs.getString(1) : SCHEMA_PUBLIC;
+            } catch (SQLException ex) {
+                //No rebuild has been done
+                mCatalogSchema = SCHEMA_PUBLIC;
+            }
+        }
+
+        return mCatalogSchema;
     }
 
     private void init() {
         mSpec.addDefaultSchema();
     }
 
+    private String rebuild(UpdateJob updateJob) {
+        String resultMessage;
+        String liveSchema = null;
+
+        try {
+            updateJob.setState(UpdateJob.State.RUNNING);
+            connectionOpen();
+            liveSchema = getCatalogSchema(mConnection);
+            String shadowSchema = SCHEMA_PUBLIC.equals(liveSchema) ? SCHEMA_SHADOW : SCHEMA_PUBLIC;
+
+            try (Statement statement = mConnection.createStatement()) {
+                statement.execute(String.format("CREATE SCHEMA IF NOT EXISTS %s;", shadowSchema));
+                statement.execute("CREATE TABLE IF NOT EXISTS PUBLIC.catalog(schema_name VARCHAR);");
+            }
+
+            setUpdateSchema(shadowSchema);
+            DbCreator.getInstance().initDb();
+            ScanPipeline scanPipeline = new ScanPipeline(updateJob);
+            if (scanPipeline.scan(new File(updateJob.getPath()).toPath())) {
+                //Faster than updating them row by row during the load
+                DbCreator.getInstance().createIndexes();
+                try (Statement statement = mConnection.createStatement()) {
+                    statement.execute("DELETE FROM PUBLIC.catalog;");
+                    statement.execute(String.format("INSERT INTO PUBLIC.catalog VALUES ('%s');", shadowSchema));
+                }
+
+                //Readers keep using the live schema until the switch
+                connectionCommit();
+                ImageCatalog.Content content = ImageCatalog.getInstance().load(shadowSchema);
+
+                mCatalogLock.writeLock().lock();
+                try {
+                    mConnectionPool.setSchema(shadowSchema);
+                    mCatalogSchema = shadowSchema;
+                    ImageCatalog.getInstance().install(content);
+                } finally {
+                    mCatalogLock.writeLock().unlock();
+                }
+                LOGGER.log(Level.INFO, "Switched catalog to schema {0}", shadowSchema);
+
+                setUpdateSchema(liveSchema);
+                DbCreator.getInstance().dropDb();
+                setUpdateSchema(shadowSchema);
+                updateJob.setState(UpdateJob.State.DONE);
+                resultMessage = "ACK Rebuild done";
+            } else {
+                connectionRollback();
+                setUpdateSchema(liveSchema);
+                updateJob.setState(UpdateJob.State.INTERRUPTED);
+                resultMessage = "ACK Rebuild interrupted";
+            }
+        } catch (ClassNotFoundException | SQLException | IOException | RuntimeException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            connectionRollback();
+            try {
+                if (liveSchema != null) {
+                    setUpdateSchema(mCatalogSchema);
+                }
+            } catch (SQLException ex2) {
+                LOGGER.log(Level.SEVERE, null, ex2);
+            }
+            updateJob.setState(UpdateJob.State.FAILED);
+            resultMessage = "ACK Rebuild failed";
+        }
+
+        return resultMessage;
+    }
+
+    /**
+     * Points the update connection, and the statements the managers prepare on
+     * it, to schema.
+     */
+    private void setUpdateSchema(String schema) throws SQLException {
+        DbCreator.getInstance().closeStatements();
+        mConnection.setSchema(schema);
+    }
+
+    private String update(UpdateJob updateJob) {
+        String resultMessage;
+
+        try {
+            updateJob.setState(UpdateJob.State.RUNNING);
+            connectionOpen();
+            DbCreator.getInstance().createDb();
+            ScanPipeline scanPipeline = new ScanPipeline(updateJob);
+            if (scanPipeline.scan(new File(updateJob.getPath()).toPath())) {
+                connectionCommit();
+                updateJob.setState(UpdateJob.State.DONE);
+                resultMessage = "ACK Update done";
+            } else {
+                connectionRollback();
+                updateJob.setState(UpdateJob.State.INTERRUPTED);
+                resultMessage = "ACK Update interrupted";
+            }
+        } catch (ClassNotFoundException | SQLException | IOException | RuntimeException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            connectionRollback();
+            updateJob.setState(UpdateJob.State.FAILED);
+            resultMessage = "ACK Update failed";
+        }
+
+        return resultMessage;
+    }
+
     private static class Holder {
 
         private static final Db INSTANCE = new Db();
@@ -15,6 +15,7 @@
  */
 package se.trixon.idd.db;
 
+import com.healthmarketscience.sqlbuilder.dbspec.basic.DbColumn;
 import java.sql.SQLException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,6 +26,8 @@ import se.trixon.idd.db.manager.ImageInformationManager;
 import se.trixon.idd.db.manager.ImageManager;
 import se.trixon.idd.db.manager.ImageMetadataManager;
 import se.trixon.idd.db.manager.ImagePositionManager;
+import se.trixon.idd.db.manager.SchemaVersionManager;
+import se.trixon.idd.db.manager.UpdateProgressManager;
 
 /**
  *
@@ -32,6 +35,12 @@ import se.trixon.idd.db.manager.ImagePositionManager;
  */
 public class DbCreator {
 
+    /**
+     * The version of the tables the managers create, add a step to
+     * {@link #migrate(int)} when they change.
+     */
+    public static final int SCHEMA_VERSION = 4;
+
     private final Db mDb = Db.getInstance();
 
     public static DbCreator getInstance() {
@@ -41,6 +50,120 @@ public class DbCreator {
     private DbCreator() {
     }
 
+    /**
+     * Closes the statements cached by the managers.
+     */
+    public void closeStatements() {
+        for (BaseManager manager : getManagers()) {
+            manager.closeStatements();
+        }
+    }
+
+    /**
+     * Creates the tables and indexes that do not exist yet, existing data is
+     * kept.
+     *
+     * @throws SQLException if a table or index could not be created
+     */
+    public void createDb() throws SQLException {
+        for (BaseManager manager : getManagers()) {
+            create(manager);
+        }
+
+        createIndexes();
+    }
+
+    /**
+     * Creates the secondary indexes that do not exist yet.
+     *
+     * @throws SQLException if an index could not be created
+     */
+    public void createIndexes() throws SQLException {
+        for (BaseManager manager : getManagers()) {
+            manager.createIndexes();
+        }
+    }
+
+    /**
+     * Drops the tables.
+     */
+    public void dropDb() {
+        for (BaseManager manager : getManagers()) {
+            try {
+                mDb.drop(manager.getTable(), true);
+            } catch (ClassNotFoundException | SQLException ex) {
+                Logger.getLogger(DbCreator.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Drops and creates the tables, the secondary indexes are left for
+     * {@link #createIndexes()} once the tables are loaded.
+     */
+    public void initDb() {
+        for (BaseManager manager : getManagers()) {
+            init(manager);
+        }
+
+        try {
+            SchemaVersionManager.getInstance().setVersion(SCHEMA_VERSION);
+        } catch (SQLException ex) {
+            Logger.getLogger(DbCreator.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Migrates the tables in place to {@link #SCHEMA_VERSION}, one committed
+     * step at a time. Catalogs from before the versioning are at version 1. A
+     * failed step throws and leaves the version as it was.
+     *
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public void upgradeDb() throws ClassNotFoundException, SQLException {
+        SchemaVersionManager schemaVersionManager = SchemaVersionManager.getInstance();
+        boolean catalogExists = mDb.exists(ImageManager.getInstance().getTable());
+        create(schemaVersionManager);
+        int version = schemaVersionManager.getVersion();
+
+        if (version == 0 && !catalogExists) {
+            createDb();
+            schemaVersionManager.setVersion(SCHEMA_VERSION);
+            mDb.connectionCommit();
+            return;
+        }
+
+        for (version = Math.max(version, 1) + 1; version <= SCHEMA_VERSION; version++) {
+            Logger.getLogger(DbCreator.class.getName()).log(Level.INFO, "Migrating the catalog to schema version {0}", version);
+            migrate(version);
+            schemaVersionManager.setVersion(version);
+            mDb.connectionCommit();
+        }
+    }
+
+    private void create(BaseManager manager) throws SQLException {
+        if (!mDb.exists(manager.getTable())) {
+            manager.create();
+            if (!mDb.exists(manager.getTable())) {
+                throw new SQLException(String.format("Could not create table %s", manager.getTable().getName()));
+            }
+        }
+    }
+
+    private BaseManager[] getManagers() {
+        return new BaseManager[]{
+            AlbumRootManager.getInstance(),
+            AlbumManager.getInstance(),
+            ImageManager.getInstance(),
+            ImageInformationManager.getInstance(),
+            ImageMetadataManager.getInstance(),
+            ImagePositionManager.getInstance(),
+            UpdateProgressManager.getInstance(),
+            SchemaVersionManager.getInstance()
+        };
+    }
+
     private void init(BaseManager manager) {
         try {
             mDb.drop(manager.getTable(), true);
@@ -51,13 +174,41 @@ public class DbCreator {
         manager.create();
     }
 
-    public void initDb() {
-        init(AlbumRootManager.getInstance());
-        init(AlbumManager.getInstance());
-        init(ImageManager.getInstance());
-        init(ImageInformationManager.getInstance());
-        init(ImageMetadataManager.getInstance());
-        init(ImagePositionManager.getInstance());
+    /**
+     * Adds the columns of the manager that are missing in its table, for
+     * migration steps. Added columns must allow null.
+     */
+    private void addColumns(BaseManager manager) throws SQLException {
+        for (DbColumn column : manager.getTable().getColumns()) {
+            if (!mDb.exists(manager.getTable(), column)) {
+                mDb.addColumn(manager.getTable(), column);
+            }
+        }
+    }
+
+    /**
+     * Migrates the tables from version - 1 to version.
+     */
+    private void migrate(int version) throws SQLException {
+        switch (version) {
+            case 2:
+                //Resumable updates
+                create(UpdateProgressManager.getInstance());
+                break;
+
+            case 3:
+                //Secondary indexes
+                createIndexes();
+                break;
+
+            case 4:
+                //Modification time of completed directories
+                addColumns(UpdateProgressManager.getInstance());
+                break;
+
+            default:
+                throw new IllegalArgumentException(String.format("No migration to schema version %d", version));
+        }
     }
 
     private static class Holder {
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.idd.db;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import se.trixon.idd.Config;
+
+/**
+ * Keeps the index updated by watching the image directory.
+ *
+ * Every directory below the image directory is registered with a
+ * {@link WatchService}. The directories touched by create, modify and delete
+ * events are collected until no event has arrived for watch_delay
+ * milliseconds, the outermost of them are then updated with
+ * {@link Db#update(java.lang.String)}. Unchanged files are skipped by the
+ * update so only the affected files are loaded.
+ *
+ * @author Patrik Karlström
+ */
+public class DirectoryWatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(DirectoryWatcher.class.getName());
+
+    private final Config mConfig = Config.getInstance();
+    private final Db mDb = Db.getInstance();
+    private final Map<WatchKey, Path> mDirectories = new HashMap<>();
+    private final Set<Path> mPendingDirectories = new HashSet<>();
+    private long mPendingSince;
+    private final Path mRoot;
+    private WatchService mWatchService;
+
+    public DirectoryWatcher() {
+        mRoot = mConfig.getImageDirectory().toPath().toAbsolutePath();
+    }
+
+    /**
+     * Registers the watches and starts watching in a daemon thread.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        mWatchService = FileSystems.getDefault().newWatchService();
+        register(mRoot);
+        LOGGER.log(Level.INFO, "Watching {0} directories below {1}", new Object[]{mDirectories.size(), mRoot});
+
+        Thread thread = new Thread(this::watch, "DirectoryWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void addPending(Path dir) {
+        if (mPendingDirectories.isEmpty()) {
+            mPendingSince = System.currentTimeMillis();
+        }
+
+        mPendingDirectories.add(dir);
+    }
+
+    private void processEvents(WatchKey key) {
+        Path dir = mDirectories.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                LOGGER.warning("Watch events lost, updating the image directory");
+                addPending(mRoot);
+                continue;
+            }
+
+            Path child = dir.resolve((Path) event.context());
+            boolean directory = Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && directory) {
+                try {
+                    register(child);
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+                addPending(child);
+            } else if (event.kind() != StandardWatchEventKinds.ENTRY_MODIFY || !directory) {
+                addPending(dir);
+            }
+        }
+
+        if (!key.reset()) {
+            mDirectories.remove(key);
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(mWatchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY
+                );
+                mDirectories.put(key, dir);
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Updates the outermost pending directories, the update of a directory
+     * covers the ones below it.
+     */
+    private void update() {
+        if (mDb.isUpdating()) {
+            return;
+        }
+
+        List<Path> dirs = new ArrayList<>(mPendingDirectories);
+        dirs.sort(Comparator.comparingInt(Path::getNameCount));
+        List<Path> updateDirs = new ArrayList<>();
+        for (Path dir : dirs) {
+            if (updateDirs.stream().noneMatch(updateDir -> dir.startsWith(updateDir))) {
+                updateDirs.add(dir);
+            }
+        }
+
+        mPendingDirectories.clear();
+        for (Path dir : updateDirs) {
+            if (Files.isDirectory(dir)) {
+                LOGGER.log(Level.INFO, "Updating changed directory: {0}", dir);
+                LOGGER.info(mDb.update(dir.toString()));
+            } else if (!dir.equals(mRoot)) {
+                //Removed, its vanished albums are found by the update of its parent
+                addPending(dir.getParent());
+            }
+        }
+    }
+
+    private void watch() {
+        long maxDelay = 10L * mConfig.getWatchDelay();
+
+        try {
+            while (true) {
+                WatchKey key;
+                if (mPendingDirectories.isEmpty()) {
+                    key = mWatchService.take();
+                } else {
+                    key = mWatchService.poll(mConfig.getWatchDelay(), TimeUnit.MILLISECONDS);
+                }
+
+                if (key != null) {
+                    processEvents(key);
+                }
+
+                if (!mPendingDirectories.isEmpty()
+                        && (key == null || System.currentTimeMillis() - mPendingSince >= maxDelay)) {
+                    update();
+                }
+            }
+        } catch (InterruptedException ex) {
+            //Stopped
+        }
+    }
+}
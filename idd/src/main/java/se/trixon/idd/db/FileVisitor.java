@@ -15,33 +15,40 @@
  */
 package se.trixon.idd.db;
 
-import com.drew.imaging.FileType;
-import com.drew.imaging.FileTypeDetector;
-import com.drew.imaging.ImageProcessingException;
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.SQLException;
-import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.ArrayUtils;
 import se.trixon.idd.Config;
 import se.trixon.idd.db.manager.AlbumManager;
 import se.trixon.idd.db.manager.AlbumRootManager;
 import se.trixon.idd.db.manager.ImageManager;
 import se.trixon.idl.FrameImage;
-import se.trixon.idl.IddHelper;
 import se.trixon.idl.db.Album;
 import se.trixon.idl.db.AlbumRoot;
 
 /**
+ * Walks the image directory and hands the work to a {@link ScanPipeline}.
+ *
+ * Album roots and albums that are already stored are reused and a file is only
+ * submitted for scanning when it is new or when its size or modification date
+ * differs from the stored image. Stored images that no longer exist in a
+ * visited directory are deleted.
+ *
+ * Directories completed by an interrupted update are trusted as they are, and
+ * only their album is visited, unless they have been modified since.
  *
  * @author Patrik Karlström
  */
@@ -49,21 +56,66 @@ public class FileVisitor extends SimpleFileVisitor<Path> {
 
     private static final Logger LOGGER = Logger.getLogger(FileVisitor.class.getName());
 
-    private Long mAlbumId;
-    private Long mAlbumRootId;
+    private AlbumRoot mAlbumRoot;
+    private boolean mAlbumRootStored;
     private final Config mConfig = Config.getInstance();
-    private int mCurrentDirLevel;
-    private FileType mFileType;
+    private final Deque<Directory> mDirectories = new ArrayDeque<>();
+    private boolean mFailed;
     private boolean mInterrupted;
+    private final ScanPipeline mScanPipeline;
     private Path mSpecificPath;
+    private final Set<Long> mVisitedAlbumIds = new HashSet<>();
+    private final Set<Long> mVisitedAlbumRootIds = new HashSet<>();
 
-    public FileVisitor() {
+    public FileVisitor(ScanPipeline scanPipeline) {
+        mScanPipeline = scanPipeline;
+    }
+
+    public Set<Long> getVisitedAlbumIds() {
+        return mVisitedAlbumIds;
+    }
+
+    public Set<Long> getVisitedAlbumRootIds() {
+        return mVisitedAlbumRootIds;
+    }
+
+    /**
+     * @return true if a file or directory could not be visited
+     */
+    public boolean isFailed() {
+        return mFailed;
     }
 
     public boolean isInterrupted() {
         return mInterrupted;
     }
 
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        Directory directory = mDirectories.pop();
+
+        if (exc == null) {
+            try {
+                for (FrameImage frameImage : directory.mStoredImages.values()) {
+                    LOGGER.log(Level.INFO, "Removing image: {0}", dir.resolve(frameImage.getName()));
+                    mScanPipeline.submitDelete(ImageManager.getInstance(), frameImage.getId());
+                }
+
+                if (directory.mAlbum != null && !directory.mCompleted) {
+                    mScanPipeline.submitCompleted(dir, directory.mModificationMillis, directory.mAlbum, directory.mSubmitted);
+                }
+            } catch (InterruptedException ex) {
+                mInterrupted = true;
+                return FileVisitResult.TERMINATE;
+            }
+        } else {
+            mFailed = true;
+            LOGGER.log(Level.SEVERE, null, exc);
+        }
+
+        return FileVisitResult.CONTINUE;
+    }
+
     @Override
     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
         if (Thread.interrupted()) {
@@ -71,61 +123,84 @@ public class FileVisitor extends SimpleFileVisitor<Path> {
             return FileVisitResult.TERMINATE;
         }
 
-        mCurrentDirLevel = dir.getNameCount() - mConfig.getImageDirectoryLevel();
-        if (mCurrentDirLevel == 1) {
-            AlbumRoot albumRoot = new AlbumRoot();
-            albumRoot.setLabel(dir.getFileName().toString());
-            albumRoot.setSpecificPath(dir.toString());
-            albumRoot.setStatus(0);
-            albumRoot.setType(1);
-
-            try {
-                mAlbumRootId = AlbumRootManager.getInstance().insert(albumRoot);
-            } catch (SQLException | ClassNotFoundException ex) {
-                LOGGER.log(Level.SEVERE, null, ex);
-            }
-            mSpecificPath = dir;
-            LOGGER.log(Level.INFO, "Adding album root: {0}", dir.toString());
-        } else if (mCurrentDirLevel > 1) {
-            Album album = new Album();
-            album.setAlbumRootId(mAlbumRootId);
-            album.setCaption(null);
-            album.setCollection(null);
-            album.setIcon(null);
-            album.setRelativePath(IOUtils.DIR_SEPARATOR + mSpecificPath.relativize(dir).toString());
-
-            try {
-                mAlbumId = AlbumManager.getInstance().insert(album);
-            } catch (ClassNotFoundException | SQLException ex) {
-                LOGGER.log(Level.SEVERE, null, ex);
+        Directory directory = new Directory();
+        directory.mModificationMillis = attrs.lastModifiedTime().toMillis();
+
+        try {
+            int currentDirLevel = dir.getNameCount() - mConfig.getImageDirectoryLevel();
+            if (currentDirLevel == 1) {
+                visitAlbumRoot(dir);
+            } else if (currentDirLevel > 1) {
+                if (mSpecificPath == null) {
+                    //The walk started below the album root
+                    Path albumRootPath = dir.subpath(0, mConfig.getImageDirectoryLevel() + 1);
+                    if (dir.getRoot() != null) {
+                        albumRootPath = dir.getRoot().resolve(albumRootPath);
+                    }
+                    visitAlbumRoot(albumRootPath);
+                }
+
+                Album album = new Album();
+                album.setCaption(null);
+                album.setCollection(null);
+                album.setIcon(null);
+                album.setRelativePath(IOUtils.DIR_SEPARATOR + mSpecificPath.relativize(dir).toString());
+
+                Long albumId = null;
+                if (mAlbumRootStored) {
+                    albumId = AlbumManager.getInstance().getId(mAlbumRoot.getId(), album.getRelativePath());
+                }
+
+                if (albumId != null) {
+                    album.setId(albumId);
+                    album.setAlbumRootId(mAlbumRoot.getId());
+                    mVisitedAlbumIds.add(albumId);
+                    directory.mCompleted = mScanPipeline.isCompleted(dir, directory.mModificationMillis);
+                    if (!directory.mCompleted) {
+                        directory.mStoredImages = ImageManager.getInstance().getAlbumImages(albumId);
+                    }
+                } else {
+                    mScanPipeline.submit(mAlbumRoot, album);
+                }
+
+                directory.mAlbum = album;
             }
+        } catch (InterruptedException ex) {
+            mInterrupted = true;
+            return FileVisitResult.TERMINATE;
+        } catch (SQLException ex) {
+            throw new IOException(ex);
         }
 
+        mDirectories.push(directory);
+
         return FileVisitResult.CONTINUE;
     }
 
     @Override
     public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
-        if (mCurrentDirLevel > 0 && isFileTypeSupported(path.toFile())) {
-            FrameImage frameImage = new FrameImage();
-            frameImage.setAlbumId(mAlbumId);
-            frameImage.setCategory(1);
-            frameImage.setStatus(1);
-            frameImage.setFileSize(attrs.size());
-            frameImage.setModificationDate(new Timestamp(attrs.lastModifiedTime().toMillis()));
-            frameImage.setName(path.getFileName().toString());
-            frameImage.setUniqueHash(IddHelper.getMd5(path.toFile()));
+        Directory directory = mDirectories.peek();
 
-            try {
-                MetadataLoader metadataLoader = new MetadataLoader(frameImage, path.toFile(), mFileType);
-            } catch (ImageProcessingException ex) {
-                LOGGER.log(Level.SEVERE, null, ex);
+        if (directory.mAlbum != null && !directory.mCompleted && attrs.isRegularFile()) {
+            mScanPipeline.getUpdateJob().fileSeen();
+            FrameImage storedImage = directory.mStoredImages.remove(path.getFileName().toString());
+            Long replaceId = null;
+
+            if (storedImage != null) {
+                if (Objects.equals(storedImage.getFileSize(), attrs.size())
+                        && Objects.equals(storedImage.getModificationDateMillis(), attrs.lastModifiedTime().toMillis())) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                replaceId = storedImage.getId();
             }
 
             try {
-                ImageManager.getInstance().insert(frameImage);
-            } catch (ClassNotFoundException | SQLException ex) {
-                LOGGER.log(Level.SEVERE, null, ex);
+                mScanPipeline.submit(directory.mAlbum, path, attrs, replaceId);
+                directory.mSubmitted++;
+            } catch (InterruptedException ex) {
+                mInterrupted = true;
+                return FileVisitResult.TERMINATE;
             }
         }
 
@@ -134,20 +209,41 @@ public class FileVisitor extends SimpleFileVisitor<Path> {
 
     @Override
     public FileVisitResult visitFileFailed(Path file, IOException ex) {
+        mFailed = true;
+        mScanPipeline.getUpdateJob().fileFailed();
         LOGGER.log(Level.SEVERE, null, ex);
 
         return FileVisitResult.CONTINUE;
     }
 
-    private boolean isFileTypeSupported(File file) throws IOException {
-        boolean supported;
-        mFileType = null;
-
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
-            mFileType = FileTypeDetector.detectFileType(bis);
-            supported = ArrayUtils.contains(mConfig.getImageFormats(), mFileType.toString().toLowerCase());
+    private void visitAlbumRoot(Path dir) throws InterruptedException, SQLException {
+        mAlbumRoot = new AlbumRoot();
+        mAlbumRoot.setLabel(dir.getFileName().toString());
+        mAlbumRoot.setSpecificPath(dir.toString());
+        mAlbumRoot.setStatus(0);
+        mAlbumRoot.setType(1);
+        mSpecificPath = dir;
+
+        Long albumRootId = null;
+        if (!mScanPipeline.getUpdateJob().isRebuild()) {
+            albumRootId = AlbumRootManager.getInstance().getId(mAlbumRoot.getSpecificPath());
         }
+        mAlbumRootStored = albumRootId != null;
+        if (mAlbumRootStored) {
+            mAlbumRoot.setId(albumRootId);
+            mVisitedAlbumRootIds.add(albumRootId);
+        } else {
+            mScanPipeline.submit(mAlbumRoot);
+            LOGGER.log(Level.INFO, "Adding album root: {0}", dir.toString());
+        }
+    }
+
+    private static class Directory {
 
-        return supported;
+        private Album mAlbum;
+        private boolean mCompleted;
+        private long mModificationMillis;
+        private Map<String, FrameImage> mStoredImages = Collections.emptyMap();
+        private int mSubmitted;
     }
 }
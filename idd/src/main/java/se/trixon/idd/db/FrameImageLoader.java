@@ -0,0 +1,132 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.idd.db;
+
+import com.drew.imaging.FileType;
+import com.drew.imaging.FileTypeDetector;
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.imaging.ImageProcessingException;
+import com.drew.metadata.Metadata;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang3.ArrayUtils;
+import se.trixon.almond.util.StringHelper;
+import se.trixon.idd.Config;
+import se.trixon.idl.FrameImage;
+import se.trixon.idl.IddHelper;
+
+/**
+ * Creates a {@link FrameImage} from a single read of the file.
+ *
+ * The file is opened once and read through one buffer that feeds the file
+ * type detector, the metadata reader and the md5 digest. Whatever the
+ * metadata reader leaves unread, the image data, is read to the end for the
+ * digest only.
+ *
+ * A loader reuses its buffer and is not thread safe, use one per thread.
+ *
+ * @author Patrik Karlström
+ */
+public class FrameImageLoader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Logger LOGGER = Logger.getLogger(FrameImageLoader.class.getName());
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final Config mConfig = Config.getInstance();
+
+    public FrameImageLoader() {
+    }
+
+    /**
+     * @param path
+     * @param attrs
+     * @return the loaded image, or null if the file type is not supported
+     * @throws IOException
+     */
+    public FrameImage load(Path path, BasicFileAttributes attrs) throws IOException {
+        MessageDigest messageDigest = IddHelper.getMd5Digest();
+
+        try (InputStream inputStream = Files.newInputStream(path);
+                BufferedInputStream bis = new BufferedInputStream(new SkipDigestInputStream(inputStream, messageDigest), BUFFER_SIZE)) {
+            FileType fileType = FileTypeDetector.detectFileType(bis);
+            if (!isFileTypeSupported(fileType)) {
+                return null;
+            }
+
+            FrameImage frameImage = new FrameImage();
+            frameImage.setCategory(1);
+            frameImage.setStatus(1);
+            frameImage.setFileSize(attrs.size());
+            frameImage.setModificationDate(new Timestamp(attrs.lastModifiedTime().toMillis()));
+            frameImage.setName(path.getFileName().toString());
+
+            try {
+                Metadata metadata = ImageMetadataReader.readMetadata(bis, attrs.size(), fileType);
+                MetadataLoader metadataLoader = new MetadataLoader(frameImage, metadata, fileType);
+            } catch (ImageProcessingException ex) {
+                LOGGER.log(Level.SEVERE, path.toString(), ex);
+            }
+
+            while (bis.read(mBuffer) != -1) {
+                //Only read for the digest
+            }
+
+            frameImage.setUniqueHash(StringHelper.bytesToHex(messageDigest.digest()));
+
+            return frameImage;
+        }
+    }
+
+    private boolean isFileTypeSupported(FileType fileType) {
+        return ArrayUtils.contains(mConfig.getImageFormats(), fileType.toString().toLowerCase());
+    }
+
+    /**
+     * The metadata reader skips segments it is not interested in, those bytes
+     * have to be digested as well.
+     */
+    private class SkipDigestInputStream extends DigestInputStream {
+
+        public SkipDigestInputStream(InputStream stream, MessageDigest digest) {
+            super(stream, digest);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long remaining = n;
+
+            while (remaining > 0) {
+                int read = read(mBuffer, 0, (int) Math.min(mBuffer.length, remaining));
+                if (read == -1) {
+                    break;
+                }
+                remaining -= read;
+            }
+
+            return n - remaining;
+        }
+    }
+}
@@ -0,0 +1,923 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.idd.db;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import se.trixon.idd.Config;
+import se.trixon.idd.db.manager.AlbumManager;
+import se.trixon.idd.db.manager.ImageManager;
+import se.trixon.idl.FrameImage;
+
+/**
+ * The columns of all images that RANDOM filters on, held in memory as one
+ * primitive array per column.
+ *
+ * Filtered picks, counts and facets are served from it without SQL, the
+ * matching rows of the most recently used filters are kept. The catalog is
+ * loaded from the database when it is opened and rebuilt, updates apply the
+ * images they add and delete as each chunk is committed.
+ *
+ * Each load also writes a snapshot of the catalog, with the image paths and
+ * hashes, that is mapped at startup to serve RANDOM before the database is
+ * open. Changes made by updates are written to the snapshot at shutdown.
+ *
+ * @author Patrik Karlström
+ */
+public class ImageCatalog {
+
+    private static final Logger LOGGER = Logger.getLogger(ImageCatalog.class.getName());
+    private static final int MAX_FILTERS = 16;
+    private static final int SNAPSHOT_MAGIC = 0x49444443;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private Map<Integer, String> mAlbumDirectories = new HashMap<>();
+    private Map<Integer, String> mAlbumPaths = new HashMap<>();
+    private int mAlbumPathsRows;
+    private boolean mChanged;
+    private final Map<String, int[]> mFilteredRows = new LinkedHashMap<String, int[]>(MAX_FILTERS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+            return size() > MAX_FILTERS;
+        }
+    };
+    private boolean mLoaded;
+    private Rows mRows = new Rows();
+    private volatile long mVersion;
+
+    public static ImageCatalog getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private ImageCatalog() {
+    }
+
+    /**
+     * Appends committed images.
+     *
+     * @param images
+     */
+    public synchronized void add(List<FrameImage> images) {
+        for (FrameImage image : images) {
+            FrameImage.Information information = image.getInformation();
+            FrameImage.Metadata metadata = image.getMetadata();
+            FrameImage.Position position = image.getPosition();
+
+            mRows.add(image.getId(),
+                    image.getAlbumId(),
+                    information == null ? null : information.getCreationDate(),
+                    information == null ? null : information.getRating(),
+                    metadata == null ? null : metadata.getMake(),
+                    metadata == null ? null : metadata.getModel(),
+                    metadata == null ? null : metadata.getLens(),
+                    position == null ? null : position.getLatitudeNumber(),
+                    position == null ? null : position.getLongitudeNumber(),
+                    image.getName(),
+                    image.getUniqueHash()
+            );
+        }
+
+        if (!images.isEmpty()) {
+            mFilteredRows.clear();
+            mChanged = true;
+        }
+    }
+
+    /**
+     * @param filter
+     * @return the number of images matching filter
+     * @throws SQLException
+     */
+    public synchronized int count(ImageFilter filter) throws SQLException {
+        return getRows(filter).length;
+    }
+
+    /**
+     * @param field one of album, date (by year), lens, make, model or rating
+     * @param filter
+     * @return the number of images matching filter by value of field, images
+     * without a value are left out
+     * @throws SQLException
+     */
+    public synchronized SortedMap<String, Integer> getFacets(ImageFilter.Field field, ImageFilter filter) throws SQLException {
+        int[] rows = getRows(filter);
+        String[] values = new String[rows.length];
+
+        switch (field) {
+            case ALBUM:
+                loadAlbumPaths();
+                for (int i = 0; i < rows.length; i++) {
+                    values[i] = mAlbumPaths.get(mRows.mAlbumIds[rows[i]]);
+                }
+                break;
+
+            case DATE:
+                for (int i = 0; i < rows.length; i++) {
+                    long millis = mRows.mCreationMillis[rows[i]];
+                    if (millis != Long.MIN_VALUE) {
+                        values[i] = String.valueOf(Instant.ofEpochMilli(millis).atZone(ZoneId.systemDefault()).getYear());
+                    }
+                }
+                break;
+
+            case LENS:
+                for (int i = 0; i < rows.length; i++) {
+                    values[i] = mRows.mLenses.get(mRows.mLensIds[rows[i]]);
+                }
+                break;
+
+            case MAKE:
+                for (int i = 0; i < rows.length; i++) {
+                    values[i] = mRows.mMakes.get(mRows.mMakeIds[rows[i]]);
+                }
+                break;
+
+            case MODEL:
+                for (int i = 0; i < rows.length; i++) {
+                    values[i] = mRows.mModels.get(mRows.mModelIds[rows[i]]);
+                }
+                break;
+
+            case RATING:
+                for (int i = 0; i < rows.length; i++) {
+                    byte rating = mRows.mRatings[rows[i]];
+                    if (rating != Byte.MIN_VALUE) {
+                        values[i] = String.valueOf(rating);
+                    }
+                }
+                break;
+
+            default:
+                throw new IllegalArgumentException(String.format("no facets of \"%s\"", field.name().toLowerCase(Locale.ROOT)));
+        }
+
+        SortedMap<String, Integer> facets = new TreeMap<>();
+        for (String value : values) {
+            if (value != null) {
+                facets.merge(value, 1, Integer::sum);
+            }
+        }
+
+        return facets;
+    }
+
+    /**
+     * @param filter
+     * @return a random id of the images matching filter, or null if there are
+     * none
+     * @throws SQLException
+     */
+    public synchronized Long getRandomId(ImageFilter filter) throws SQLException {
+        if (!mLoaded) {
+            reload();
+        }
+
+        if (filter.isEmpty()) {
+            return mRows.mSize == 0 ? null : mRows.mIds[ThreadLocalRandom.current().nextInt(mRows.mSize)];
+        }
+
+        int[] rows = getRows(filter);
+
+        return rows.length == 0 ? null : mRows.mIds[rows[ThreadLocalRandom.current().nextInt(rows.length)]];
+    }
+
+    /**
+     * @param filter
+     * @return a random image matching filter with the columns of the catalog,
+     * or null if there are none
+     * @throws SQLException
+     */
+    public synchronized FrameImage getRandomImage(ImageFilter filter) throws SQLException {
+        int[] rows = getRows(filter);
+        if (rows.length > 0) {
+            loadAlbumPaths();
+        }
+
+        return rows.length == 0 ? null : getImage(rows[ThreadLocalRandom.current().nextInt(rows.length)]);
+    }
+
+    public synchronized int getSize() {
+        return mRows.mSize;
+    }
+
+    /**
+     * @return a number that changes when images are removed or the catalog is
+     * loaded again
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Uses a catalog from {@link #load(String)}.
+     *
+     * @param content
+     */
+    public synchronized void install(Content content) {
+        mRows = content.mRows;
+        mAlbumDirectories = content.mAlbumDirectories;
+        mAlbumPaths = content.mAlbumPaths;
+        mAlbumPathsRows = content.mRows.mSize;
+        mChanged = false;
+        mFilteredRows.clear();
+        mLoaded = true;
+        mVersion++;
+
+        LOGGER.log(Level.INFO, "Loaded {0} images into the catalog", content.mRows.mSize);
+    }
+
+    /**
+     * Loads the catalog from the database and writes the snapshot, without
+     * using it until it is installed.
+     *
+     * @param schema the schema to load, the catalog if null
+     * @return
+     * @throws SQLException
+     */
+    public Content load(String schema) throws SQLException {
+        Content content = new Content();
+        ImageManager.getInstance().getCatalogRows(content.mRows, schema);
+        content.mAlbumPaths = toAlbumPaths(AlbumManager.getInstance().getRelativePaths(schema));
+        content.mAlbumDirectories = toAlbumPaths(AlbumManager.getInstance().getAlbumPaths(schema));
+        writeSnapshot(content.mRows, content.mAlbumPaths, content.mAlbumDirectories);
+
+        return content;
+    }
+
+    /**
+     * Maps the snapshot written by the last reload.
+     *
+     * @return true if the snapshot was loaded
+     */
+    public boolean loadSnapshot() {
+        File file = Config.getInstance().getSnapshotFile();
+        if (!file.isFile()) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) {
+                LOGGER.log(Level.WARNING, "Not a catalog snapshot of this version: {0}", file);
+                return false;
+            }
+
+            Map<Integer, String> albumPaths = readAlbumPaths(buffer);
+            Map<Integer, String> albumDirectories = readAlbumPaths(buffer);
+            Rows rows = Rows.read(buffer);
+
+            synchronized (this) {
+                if (mLoaded) {
+                    return false;
+                }
+
+                mRows = rows;
+                mAlbumDirectories = albumDirectories;
+                mAlbumPaths = albumPaths;
+                mAlbumPathsRows = rows.mSize;
+                mChanged = false;
+                mFilteredRows.clear();
+                mLoaded = true;
+                mVersion++;
+            }
+
+            LOGGER.log(Level.INFO, "Loaded {0} images from the catalog snapshot", rows.mSize);
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Could not load the catalog snapshot", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Loads the catalog from the database and writes the snapshot.
+     */
+    public void reload() {
+        try {
+            install(load(null));
+        } catch (SQLException ex) {
+            LOGGER.log(Level.SEVERE, "Could not load the catalog", ex);
+        }
+    }
+
+    /**
+     * Removes committed deletions.
+     *
+     * @param ids
+     */
+    public synchronized void remove(Set<Long> ids) {
+        if (!ids.isEmpty() && mRows.remove(ids)) {
+            //The rows have moved, their albums are checked again
+            mAlbumPathsRows = 0;
+            mFilteredRows.clear();
+            mChanged = true;
+            mVersion++;
+        }
+    }
+
+    /**
+     * Writes the snapshot if images were added or removed since the catalog
+     * was loaded.
+     */
+    public synchronized void writeSnapshot() {
+        if (!mChanged) {
+            return;
+        }
+
+        try {
+            loadAlbumPaths();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "Could not write the catalog snapshot", ex);
+            return;
+        }
+
+        writeSnapshot(mRows, mAlbumPaths, mAlbumDirectories);
+        mChanged = false;
+    }
+
+    private boolean compare(ImageFilter.Operator operator, int comparison) {
+        switch (operator) {
+            case EQ:
+                return comparison == 0;
+
+            case GE:
+                return comparison >= 0;
+
+            case GT:
+                return comparison > 0;
+
+            case LE:
+                return comparison <= 0;
+
+            case LT:
+                return comparison < 0;
+
+            default:
+                throw new IllegalArgumentException(operator.name());
+        }
+    }
+
+    private void filter(BitSet rows, int[] values, BitSet matchingValues) {
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+            int value = values[row];
+            if (value < 0 || !matchingValues.get(value)) {
+                rows.clear(row);
+            }
+        }
+    }
+
+    private void filter(BitSet rows, ImageFilter.Term term) throws SQLException {
+        switch (term.getField()) {
+            case ALBUM:
+                loadAlbumPaths();
+                BitSet albumIds = new BitSet();
+                for (Map.Entry<Integer, String> entry : mAlbumPaths.entrySet()) {
+                    if (matches(term, entry.getValue())) {
+                        albumIds.set(entry.getKey());
+                    }
+                }
+                filter(rows, mRows.mAlbumIds, albumIds);
+                break;
+
+            case DATE:
+                long millis = ((Timestamp) term.getValue()).getTime();
+                for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+                    long value = mRows.mCreationMillis[row];
+                    if (value == Long.MIN_VALUE || !compare(term.getOperator(), Long.compare(value, millis))) {
+                        rows.clear(row);
+                    }
+                }
+                break;
+
+            case LAT:
+                filter(rows, mRows.mLatitudes, term);
+                break;
+
+            case LENS:
+                filter(rows, mRows.mLensIds, mRows.mLenses.getIds(term));
+                break;
+
+            case LON:
+                filter(rows, mRows.mLongitudes, term);
+                break;
+
+            case MAKE:
+                filter(rows, mRows.mMakeIds, mRows.mMakes.getIds(term));
+                break;
+
+            case MODEL:
+                filter(rows, mRows.mModelIds, mRows.mModels.getIds(term));
+                break;
+
+            case RATING:
+                int rating = (Integer) term.getValue();
+                for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+                    byte value = mRows.mRatings[row];
+                    if (value == Byte.MIN_VALUE || !compare(term.getOperator(), Integer.compare(value, rating))) {
+                        rows.clear(row);
+                    }
+                }
+                break;
+
+            default:
+                throw new IllegalArgumentException(term.getField().name());
+        }
+    }
+
+    private void filter(BitSet rows, float[] values, ImageFilter.Term term) {
+        double number = (Double) term.getValue();
+
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+            float value = values[row];
+            if (Float.isNaN(value) || !compare(term.getOperator(), Double.compare(value, number))) {
+                rows.clear(row);
+            }
+        }
+    }
+
+    private FrameImage getImage(int row) {
+        FrameImage frameImage = new FrameImage();
+        frameImage.setAlbumId((long) mRows.mAlbumIds[row]);
+        frameImage.setId(mRows.mIds[row]);
+        frameImage.setName(mRows.getName(row));
+        frameImage.setPath(String.format("%s/%s", mAlbumDirectories.get(mRows.mAlbumIds[row]), frameImage.getName()));
+        frameImage.setUniqueHash(mRows.getUniqueHash(row));
+
+        FrameImage.Information information = new FrameImage.Information();
+        long millis = mRows.mCreationMillis[row];
+        information.setCreationDate(millis == Long.MIN_VALUE ? null : Long.valueOf(millis));
+        information.setImageId(frameImage.getId());
+        byte rating = mRows.mRatings[row];
+        information.setRating(rating == Byte.MIN_VALUE ? null : Integer.valueOf(rating));
+        frameImage.setInformation(information);
+
+        FrameImage.Metadata metadata = new FrameImage.Metadata();
+        metadata.setImageId(frameImage.getId());
+        metadata.setLens(mRows.mLenses.get(mRows.mLensIds[row]));
+        metadata.setMake(mRows.mMakes.get(mRows.mMakeIds[row]));
+        metadata.setModel(mRows.mModels.get(mRows.mModelIds[row]));
+        frameImage.setMetadata(metadata);
+
+        FrameImage.Position position = new FrameImage.Position();
+        position.setImageId(frameImage.getId());
+        float latitude = mRows.mLatitudes[row];
+        position.setLatitudeNumber(Float.isNaN(latitude) ? null : Double.valueOf(latitude));
+        float longitude = mRows.mLongitudes[row];
+        position.setLongitudeNumber(Float.isNaN(longitude) ? null : Double.valueOf(longitude));
+        frameImage.setPosition(position);
+
+        return frameImage;
+    }
+
+    private int[] getRows(ImageFilter filter) throws SQLException {
+        if (!mLoaded) {
+            reload();
+        }
+
+        int[] rows = mFilteredRows.get(filter.getKey());
+
+        if (rows == null) {
+            BitSet bitSet = new BitSet(mRows.mSize);
+            bitSet.set(0, mRows.mSize);
+            for (ImageFilter.Term term : filter.getTerms()) {
+                filter(bitSet, term);
+            }
+
+            rows = bitSet.stream().toArray();
+            mFilteredRows.put(filter.getKey(), rows);
+        }
+
+        return rows;
+    }
+
+    /**
+     * Loads the album paths again if an album was added by a running update.
+     */
+    private void loadAlbumPaths() throws SQLException {
+        for (int row = mAlbumPathsRows; row < mRows.mSize; row++) {
+            if (!mAlbumPaths.containsKey(mRows.mAlbumIds[row])) {
+                mAlbumDirectories = toAlbumPaths(AlbumManager.getInstance().getAlbumPaths());
+                mAlbumPaths = toAlbumPaths(AlbumManager.getInstance().getRelativePaths());
+                break;
+            }
+        }
+
+        mAlbumPathsRows = mRows.mSize;
+    }
+
+    /**
+     * Writes to a temporary file that replaces the snapshot when done, a mapped
+     * snapshot stays valid.
+     */
+    private void writeSnapshot(Rows rows, Map<Integer, String> albumPaths, Map<Integer, String> albumDirectories) {
+        File file = Config.getInstance().getSnapshotFile();
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                output.writeInt(SNAPSHOT_MAGIC);
+                output.writeInt(SNAPSHOT_VERSION);
+                writeAlbumPaths(output, albumPaths);
+                writeAlbumPaths(output, albumDirectories);
+                rows.write(output);
+            }
+
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Could not write the catalog snapshot", ex);
+            tempFile.delete();
+        }
+    }
+
+    private static boolean matches(ImageFilter.Term term, String value) {
+        if (value == null) {
+            return false;
+        } else if (term.getOperator() == ImageFilter.Operator.LIKE) {
+            return ((Pattern) term.getValue()).matcher(value).matches();
+        } else {
+            return value.equals(term.getValue());
+        }
+    }
+
+    private static Map<Integer, String> readAlbumPaths(ByteBuffer buffer) {
+        Map<Integer, String> albumPaths = new HashMap<>();
+        for (int i = buffer.getInt(); i > 0; i--) {
+            albumPaths.put(buffer.getInt(), readString(buffer));
+        }
+
+        return albumPaths;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Map<Integer, String> toAlbumPaths(Map<Long, String> paths) {
+        Map<Integer, String> albumPaths = new HashMap<>();
+        for (Map.Entry<Long, String> entry : paths.entrySet()) {
+            albumPaths.put(entry.getKey().intValue(), entry.getValue());
+        }
+
+        return albumPaths;
+    }
+
+    private static void writeAlbumPaths(DataOutputStream output, Map<Integer, String> albumPaths) throws IOException {
+        output.writeInt(albumPaths.size());
+        for (Map.Entry<Integer, String> entry : albumPaths.entrySet()) {
+            output.writeInt(entry.getKey());
+            writeString(output, entry.getValue());
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * A loaded catalog that is not used yet.
+     */
+    public static class Content {
+
+        private Map<Integer, String> mAlbumDirectories;
+        private Map<Integer, String> mAlbumPaths;
+        private final Rows mRows = new Rows();
+
+        private Content() {
+        }
+    }
+
+    /**
+     * The values of a text column, stored once and referred to by their
+     * index.
+     */
+    private static class Dictionary {
+
+        private final Map<String, Integer> mIds = new HashMap<>();
+        private final List<String> mValues = new ArrayList<>();
+
+        private String get(int id) {
+            return id < 0 ? null : mValues.get(id);
+        }
+
+        private int getId(String value) {
+            if (value == null) {
+                return -1;
+            }
+
+            return mIds.computeIfAbsent(value, key -> {
+                mValues.add(key);
+                return mValues.size() - 1;
+            });
+        }
+
+        private BitSet getIds(ImageFilter.Term term) {
+            BitSet ids = new BitSet(mValues.size());
+            for (int id = 0; id < mValues.size(); id++) {
+                if (matches(term, mValues.get(id))) {
+                    ids.set(id);
+                }
+            }
+
+            return ids;
+        }
+
+        private void read(ByteBuffer buffer) {
+            for (int i = buffer.getInt(); i > 0; i--) {
+                getId(readString(buffer));
+            }
+        }
+
+        private void write(DataOutputStream output) throws IOException {
+            output.writeInt(mValues.size());
+            for (String value : mValues) {
+                writeString(output, value);
+            }
+        }
+    }
+
+    /**
+     * One array per column, null is stored as Long.MIN_VALUE, Byte.MIN_VALUE,
+     * NaN or -1. The name and unique hash of each row are kept as UTF-8 in one
+     * buffer, the mapped snapshot until rows are added.
+     */
+    public static class Rows {
+
+        private int[] mAlbumIds = new int[0];
+        private long[] mCreationMillis = new long[0];
+        private long[] mIds = new long[0];
+        private float[] mLatitudes = new float[0];
+        private final Dictionary mLenses = new Dictionary();
+        private int[] mLensIds = new int[0];
+        private float[] mLongitudes = new float[0];
+        private int[] mMakeIds = new int[0];
+        private final Dictionary mMakes = new Dictionary();
+        private int[] mModelIds = new int[0];
+        private final Dictionary mModels = new Dictionary();
+        private byte[] mRatings = new byte[0];
+        private int mSize;
+        private int[] mStringOffsets = new int[0];
+        private ByteBuffer mStrings = ByteBuffer.allocate(0);
+        private int mStringsSize;
+
+        private static Rows read(ByteBuffer buffer) {
+            Rows rows = new Rows();
+            int size = buffer.getInt();
+            rows.mMakes.read(buffer);
+            rows.mModels.read(buffer);
+            rows.mLenses.read(buffer);
+
+            rows.mIds = new long[size];
+            buffer.asLongBuffer().get(rows.mIds);
+            buffer.position(buffer.position() + size * Long.BYTES);
+            rows.mAlbumIds = readInts(buffer, size);
+            rows.mCreationMillis = new long[size];
+            buffer.asLongBuffer().get(rows.mCreationMillis);
+            buffer.position(buffer.position() + size * Long.BYTES);
+            rows.mRatings = new byte[size];
+            buffer.get(rows.mRatings);
+            rows.mMakeIds = readInts(buffer, size);
+            rows.mModelIds = readInts(buffer, size);
+            rows.mLensIds = readInts(buffer, size);
+            rows.mLatitudes = readFloats(buffer, size);
+            rows.mLongitudes = readFloats(buffer, size);
+            rows.mStringOffsets = readInts(buffer, size);
+
+            rows.mStringsSize = buffer.getInt();
+            rows.mStrings = buffer.slice();
+            rows.mStrings.limit(rows.mStringsSize);
+            rows.mSize = size;
+
+            return rows;
+        }
+
+        private static float[] readFloats(ByteBuffer buffer, int size) {
+            float[] values = new float[size];
+            buffer.asFloatBuffer().get(values);
+            buffer.position(buffer.position() + size * Float.BYTES);
+
+            return values;
+        }
+
+        private static int[] readInts(ByteBuffer buffer, int size) {
+            int[] values = new int[size];
+            buffer.asIntBuffer().get(values);
+            buffer.position(buffer.position() + size * Integer.BYTES);
+
+            return values;
+        }
+
+        public void add(long id, long albumId, Timestamp creationDate, Integer rating, String make, String model, String lens, Double latitude, Double longitude, String name, String uniqueHash) {
+            if (mSize == mIds.length) {
+                int capacity = Math.max(1024, mSize + (mSize >> 1));
+                mAlbumIds = Arrays.copyOf(mAlbumIds, capacity);
+                mCreationMillis = Arrays.copyOf(mCreationMillis, capacity);
+                mIds = Arrays.copyOf(mIds, capacity);
+                mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+                mLensIds = Arrays.copyOf(mLensIds, capacity);
+                mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+                mMakeIds = Arrays.copyOf(mMakeIds, capacity);
+                mModelIds = Arrays.copyOf(mModelIds, capacity);
+                mRatings = Arrays.copyOf(mRatings, capacity);
+                mStringOffsets = Arrays.copyOf(mStringOffsets, capacity);
+            }
+
+            mAlbumIds[mSize] = (int) albumId;
+            mCreationMillis[mSize] = creationDate == null ? Long.MIN_VALUE : creationDate.getTime();
+            mIds[mSize] = id;
+            mLatitudes[mSize] = latitude == null ? Float.NaN : latitude.floatValue();
+            mLensIds[mSize] = mLenses.getId(lens);
+            mLongitudes[mSize] = longitude == null ? Float.NaN : longitude.floatValue();
+            mMakeIds[mSize] = mMakes.getId(make);
+            mModelIds[mSize] = mModels.getId(model);
+            mRatings[mSize] = rating == null ? Byte.MIN_VALUE : (byte) Math.max(Byte.MIN_VALUE + 1, Math.min(Byte.MAX_VALUE, rating));
+            mStringOffsets[mSize] = addStrings(name, uniqueHash);
+            mSize++;
+        }
+
+        /**
+         * @return the offset of name, followed by uniqueHash
+         */
+        private int addStrings(String name, String uniqueHash) {
+            byte[] nameBytes = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+            byte[] hashBytes = uniqueHash == null ? null : uniqueHash.getBytes(StandardCharsets.UTF_8);
+            int length = 2 * Integer.BYTES + (nameBytes == null ? 0 : nameBytes.length) + (hashBytes == null ? 0 : hashBytes.length);
+
+            if (mStrings.isReadOnly() || mStringsSize + length > mStrings.capacity()) {
+                ByteBuffer strings = ByteBuffer.allocate(Math.max(mStringsSize + length, Math.max(64 * 1024, mStringsSize + (mStringsSize >> 1))));
+                ByteBuffer used = mStrings.duplicate();
+                used.position(0).limit(mStringsSize);
+                strings.put(used);
+                mStrings = strings;
+            }
+
+            int offset = mStringsSize;
+            ByteBuffer buffer = mStrings.duplicate();
+            buffer.position(offset);
+            for (byte[] bytes : new byte[][]{nameBytes, hashBytes}) {
+                if (bytes == null) {
+                    buffer.putInt(-1);
+                } else {
+                    buffer.putInt(bytes.length);
+                    buffer.put(bytes);
+                }
+            }
+            mStringsSize = buffer.position();
+
+            return offset;
+        }
+
+        private String getName(int row) {
+            return readString(getStrings(mStringOffsets[row]));
+        }
+
+        private ByteBuffer getStrings(int offset) {
+            ByteBuffer buffer = mStrings.duplicate();
+            buffer.position(offset);
+
+            return buffer;
+        }
+
+        private String getUniqueHash(int row) {
+            ByteBuffer buffer = getStrings(mStringOffsets[row]);
+            int length = buffer.getInt();
+            buffer.position(buffer.position() + Math.max(0, length));
+
+            return readString(buffer);
+        }
+
+        /**
+         * Moves the remaining rows down, the strings of removed rows are kept
+         * until the catalog is loaded again.
+         *
+         * @return true if a row was removed
+         */
+        private boolean remove(Set<Long> ids) {
+            int size = 0;
+            for (int row = 0; row < mSize; row++) {
+                if (ids.contains(mIds[row])) {
+                    continue;
+                }
+
+                if (size != row) {
+                    mAlbumIds[size] = mAlbumIds[row];
+                    mCreationMillis[size] = mCreationMillis[row];
+                    mIds[size] = mIds[row];
+                    mLatitudes[size] = mLatitudes[row];
+                    mLensIds[size] = mLensIds[row];
+                    mLongitudes[size] = mLongitudes[row];
+                    mMakeIds[size] = mMakeIds[row];
+                    mModelIds[size] = mModelIds[row];
+                    mRatings[size] = mRatings[row];
+                    mStringOffsets[size] = mStringOffsets[row];
+                }
+                size++;
+            }
+
+            boolean removed = size != mSize;
+            mSize = size;
+
+            return removed;
+        }
+
+        private void write(DataOutputStream output) throws IOException {
+            output.writeInt(mSize);
+            mMakes.write(output);
+            mModels.write(output);
+            mLenses.write(output);
+
+            for (int i = 0; i < mSize; i++) {
+                output.writeLong(mIds[i]);
+            }
+            for (int i = 0; i < mSize; i++) {
+                output.writeInt(mAlbumIds[i]);
+            }
+            for (int i = 0; i < mSize; i++) {
+                output.writeLong(mCreationMillis[i]);
+            }
+            output.write(mRatings, 0, mSize);
+            for (int[] values : new int[][]{mMakeIds, mModelIds, mLensIds}) {
+                for (int i = 0; i < mSize; i++) {
+                    output.writeInt(values[i]);
+                }
+            }
+            for (float[] values : new float[][]{mLatitudes, mLongitudes}) {
+                for (int i = 0; i < mSize; i++) {
+                    output.writeFloat(values[i]);
+                }
+            }
+            for (int i = 0; i < mSize; i++) {
+                output.writeInt(mStringOffsets[i]);
+            }
+
+            output.writeInt(mStringsSize);
+            ByteBuffer buffer = getStrings(0);
+            byte[] bytes = new byte[8192];
+            for (int remaining = mStringsSize; remaining > 0; remaining -= bytes.length) {
+                int length = Math.min(remaining, bytes.length);
+                buffer.get(bytes, 0, length);
+                output.write(bytes, 0, length);
+            }
+        }
+    }
+
+    private static class Holder {
+
+        private static final ImageCatalog INSTANCE = new ImageCatalog();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.idd.db;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The images RANDOM picks from, parsed from terms like
+ * <pre>
+ * date&gt;=-5y album=/family/* make=Canon lens=*16-35* rating&gt;=3 lat&gt;55.2 lat&lt;56
+ * </pre>
+ *
+ * All terms must match. Dates are YYYY, YYYY-MM or YYYY-MM-DD, where
+ * date=2020 is the whole year, or relative to today like -5y, -6m or -30d.
+ * Filter names are case insensitive, text values are case sensitive and *
+ * matches anything. Ratings are whole numbers.
+ *
+ * @author Patrik Karlström
+ */
+public class ImageFilter {
+
+    public static final ImageFilter NONE = new ImageFilter(Collections.emptyList());
+    private static final Pattern RELATIVE_DATE_PATTERN = Pattern.compile("-(\\d+)([dmy])");
+    private static final Pattern TERM_PATTERN = Pattern.compile("([a-zA-Z]+)(<=|>=|=|<|>)(.+)");
+
+    private final String mKey;
+    private final List<Term> mTerms;
+
+    /**
+     * @param args the terms
+     * @return the filter
+     * @throws IllegalArgumentException if a term is not valid
+     */
+    public static ImageFilter parse(String[] args) throws IllegalArgumentException {
+        List<Term> terms = new ArrayList<>();
+
+        for (String arg : args) {
+            Matcher matcher = TERM_PATTERN.matcher(arg);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException(String.format("not a filter term \"%s\"", arg));
+            }
+
+            Field field;
+            try {
+                field = Field.valueOf(matcher.group(1).toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException(String.format("unknown filter \"%s\"", matcher.group(1)));
+            }
+
+            Operator operator = Operator.parse(matcher.group(2));
+            String value = matcher.group(3);
+
+            switch (field) {
+                case ALBUM:
+                case LENS:
+                case MAKE:
+                case MODEL:
+                    if (operator != Operator.EQ) {
+                        throw new IllegalArgumentException(String.format("only = is supported by \"%s\"", arg));
+                    }
+                    if (value.contains("*")) {
+                        StringBuilder regex = new StringBuilder();
+                        for (String part : value.split("\\*", -1)) {
+                            regex.append(regex.length() == 0 ? "" : ".*").append(part.isEmpty() ? "" : Pattern.quote(part));
+                        }
+                        terms.add(new Term(field, Operator.LIKE, Pattern.compile(regex.toString())));
+                    } else {
+                        terms.add(new Term(field, operator, value));
+                    }
+                    break;
+
+                case DATE:
+                    LocalDate[] period = parsePeriod(value);
+                    Timestamp start = Timestamp.valueOf(period[0].atStartOfDay());
+                    Timestamp end = Timestamp.valueOf(period[1].atStartOfDay());
+                    switch (operator) {
+                        case EQ:
+                            terms.add(new Term(field, Operator.GE, start));
+                            terms.add(new Term(field, Operator.LT, end));
+                            break;
+
+                        case GE:
+                            terms.add(new Term(field, Operator.GE, start));
+                            break;
+
+                        case GT:
+                            terms.add(new Term(field, Operator.GE, end));
+                            break;
+
+                        case LE:
+                            terms.add(new Term(field, Operator.LT, end));
+                            break;
+
+                        default:
+                            terms.add(new Term(field, Operator.LT, start));
+                    }
+                    break;
+
+                case LAT:
+                case LON:
+                    terms.add(new Term(field, operator, parseNumber(value, arg)));
+                    break;
+
+                case RATING:
+                    terms.add(new Term(field, operator, parseInteger(value, arg)));
+                    break;
+
+                default:
+                    throw new IllegalArgumentException(String.format("unknown filter \"%s\"", matcher.group(1)));
+            }
+        }
+
+        return new ImageFilter(terms);
+    }
+
+    private ImageFilter(List<Term> terms) {
+        mTerms = Collections.unmodifiableList(terms);
+
+        List<String> keys = new ArrayList<>();
+        for (Term term : terms) {
+            keys.add(term.toString());
+        }
+        Collections.sort(keys);
+        mKey = String.join(" ", keys);
+    }
+
+    /**
+     * @return the same key for filters with the same terms
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    public List<Term> getTerms() {
+        return mTerms;
+    }
+
+    public boolean isEmpty() {
+        return mTerms.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return mKey;
+    }
+
+    private static int parseInteger(String value, String arg) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("not a whole number \"%s\"", arg));
+        }
+    }
+
+    private static double parseNumber(String value, String arg) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("not a number \"%s\"", arg));
+        }
+    }
+
+    /**
+     * @return the first day of the period and the first day after it
+     */
+    private static LocalDate[] parsePeriod(String value) {
+        Matcher matcher = RELATIVE_DATE_PATTERN.matcher(value);
+        if (matcher.matches()) {
+            int amount = Integer.parseInt(matcher.group(1));
+            LocalDate today = LocalDate.now();
+            LocalDate date;
+            switch (matcher.group(2)) {
+                case "d":
+                    date = today.minusDays(amount);
+                    break;
+
+                case "m":
+                    date = today.minusMonths(amount);
+                    break;
+
+                default:
+                    date = today.minusYears(amount);
+            }
+
+            return new LocalDate[]{date, date.plusDays(1)};
+        }
+
+        try {
+            switch (value.length()) {
+                case 4:
+                    LocalDate year = LocalDate.of(Integer.parseInt(value), 1, 1);
+                    return new LocalDate[]{year, year.plusYears(1)};
+
+                case 7:
+                    LocalDate month = LocalDate.parse(value + "-01");
+                    return new LocalDate[]{month, month.plusMonths(1)};
+
+                default:
+                    LocalDate day = LocalDate.parse(value);
+                    return new LocalDate[]{day, day.plusDays(1)};
+            }
+        } catch (DateTimeParseException | NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("not a date \"%s\"", value));
+        }
+    }
+
+    public enum Field {
+        ALBUM, DATE, LAT, LENS, LON, MAKE, MODEL, RATING;
+    }
+
+    public enum Operator {
+        EQ("="), GE(">="), GT(">"), LE("<="), LIKE("~"), LT("<");
+        private final String mSymbol;
+
+        static Operator parse(String symbol) {
+            for (Operator operator : values()) {
+                if (operator.mSymbol.equals(symbol)) {
+                    return operator;
+                }
+            }
+
+            throw new IllegalArgumentException(symbol);
+        }
+
+        private Operator(String symbol) {
+            mSymbol = symbol;
+        }
+    }
+
+    public static class Term {
+
+        private final Field mField;
+        private final Operator mOperator;
+        private final Object mValue;
+
+        private Term(Field field, Operator operator, Object value) {
+            mField = field;
+            mOperator = operator;
+            mValue = value;
+        }
+
+        public Field getField() {
+            return mField;
+        }
+
+        public Operator getOperator() {
+            return mOperator;
+        }
+
+        public Object getValue() {
+            return mValue;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s%s%s", mField.name().toLowerCase(Locale.ROOT), mOperator.mSymbol, mValue);
+        }
+    }
+}
@@ -51,9 +51,12 @@ public class MetadataLoader {
     private final JpegDirectory mJpegDirectory;
 
     public MetadataLoader(FrameImage frameImage, File file, FileType fileType) throws IOException, ImageProcessingException {
+        this(frameImage, ImageMetadataReader.readMetadata(file), fileType);
+    }
+
+    public MetadataLoader(FrameImage frameImage, Metadata metadata, FileType fileType) {
         mFrameImage = frameImage;
         mFileType = fileType;
-        Metadata metadata = ImageMetadataReader.readMetadata(file);
 
         mExifIFD0Directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
         mExifIFD0Descriptor = new ExifIFD0Descriptor(mExifIFD0Directory);
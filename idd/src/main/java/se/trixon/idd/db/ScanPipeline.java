@@ -0,0 +1,585 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.idd.db;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import se.trixon.idd.Config;
+import se.trixon.idd.db.manager.AlbumManager;
+import se.trixon.idd.db.manager.AlbumRootManager;
+import se.trixon.idd.db.manager.BaseManager;
+import se.trixon.idd.db.manager.ImageManager;
+import se.trixon.idd.db.manager.UpdateProgressManager;
+import se.trixon.idl.FrameImage;
+import se.trixon.idl.db.Album;
+import se.trixon.idl.db.AlbumRoot;
+
+/**
+ * Staged scanner used by {@link Db#update(java.lang.String)}.
+ *
+ * The calling thread walks the tree with a {@link FileVisitor} and feeds a
+ * bounded queue, a pool of workers loads each file with a
+ * {@link FrameImageLoader} and a single writer thread persists the results in
+ * the order the workers finish them, images are inserted in batches of
+ * scan_batch_size. Both queues are bounded so a slow stage blocks the one
+ * before it. A file that fails to load is counted as failed, if the writer
+ * fails the whole scan fails.
+ *
+ * The writer commits every scan_commit_rows rows or scan_commit_interval
+ * seconds. Directories whose files are all written are stored in the same
+ * commit with their modification time, an interrupted update resumes by
+ * skipping those that have not been modified since. The progress below the
+ * scanned path is cleared when the scan is done. Committed images are added to and removed
+ * from the {@link ImageCatalog} right away.
+ *
+ * Unchanged files are skipped by the walker, changed files replace their
+ * stored image and images, albums and album roots below the scanned path that
+ * no longer exist are deleted. A rebuild stores everything it finds.
+ *
+ * @author Patrik Karlström
+ */
+public class ScanPipeline {
+
+    private static final Logger LOGGER = Logger.getLogger(ScanPipeline.class.getName());
+    private static final ScanTask SCAN_POISON = new ScanTask(null, null, null, null);
+    private static final Object WRITE_POISON = new Object();
+
+    private Map<String, Long> mCompletedDirectories = Collections.emptyMap();
+    private final Config mConfig = Config.getInstance();
+    private final Db mDb = Db.getInstance();
+    private volatile IOException mFailure;
+    private boolean mInterrupted;
+    private final BlockingQueue<ScanTask> mScanQueue;
+    private Thread mScanThread;
+    private final UpdateJob mUpdateJob;
+    private final List<Thread> mWorkers = new ArrayList<>();
+    private final BlockingQueue<Object> mWriteQueue;
+    private Thread mWriter;
+
+    public ScanPipeline(UpdateJob updateJob) {
+        mUpdateJob = updateJob;
+        mScanQueue = new ArrayBlockingQueue<>(mConfig.getScanQueueSize());
+        mWriteQueue = new ArrayBlockingQueue<>(mConfig.getScanQueueSize());
+    }
+
+    public UpdateJob getUpdateJob() {
+        return mUpdateJob;
+    }
+
+    public boolean isInterrupted() {
+        return mInterrupted;
+    }
+
+    /**
+     * Walks path and waits until every supported file has been written.
+     *
+     * @param path
+     * @return false if the scan was interrupted
+     * @throws IOException if the scan failed
+     */
+    public boolean scan(Path path) throws IOException {
+        if (!mUpdateJob.isRebuild()) {
+            try {
+                mCompletedDirectories = UpdateProgressManager.getInstance().getDirectories();
+            } catch (SQLException ex) {
+                throw new IOException(ex);
+            }
+        }
+
+        if (!mCompletedDirectories.isEmpty()) {
+            LOGGER.log(Level.INFO, "Resuming update, {0} directories already done", mCompletedDirectories.size());
+        }
+
+        mScanThread = Thread.currentThread();
+        start();
+        FileVisitor fileVisitor = new FileVisitor(this);
+
+        try {
+            EnumSet<FileVisitOption> fileVisitOptions = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
+            Files.walkFileTree(path, fileVisitOptions, Integer.MAX_VALUE, fileVisitor);
+            mInterrupted = fileVisitor.isInterrupted();
+
+            if (!mInterrupted && !mUpdateJob.isRebuild()) {
+                if (fileVisitor.isFailed()) {
+                    LOGGER.warning("Not all files could be visited, keeping albums that were not found");
+                } else {
+                    mInterrupted = !submitVanished(path, fileVisitor);
+                }
+            }
+        } catch (SQLException ex) {
+            throw new IOException(ex);
+        } finally {
+            if (mInterrupted || !finish()) {
+                mInterrupted = true;
+                abort();
+            }
+        }
+
+        if (mFailure != null) {
+            //Raised by the failing writer to stop the walk
+            Thread.interrupted();
+            throw mFailure;
+        }
+
+        if (!mInterrupted) {
+            try {
+                UpdateProgressManager.getInstance().clear(path);
+            } catch (SQLException ex) {
+                throw new IOException(ex);
+            }
+        }
+
+        return !mInterrupted;
+    }
+
+    /**
+     * @param dir
+     * @param modificationMillis the modification time of dir
+     * @return true if dir was completed by an interrupted update and has not
+     * been modified since
+     */
+    boolean isCompleted(Path dir, long modificationMillis) {
+        Long completedModificationMillis = mCompletedDirectories.get(dir.toString());
+
+        return completedModificationMillis != null && completedModificationMillis == modificationMillis;
+    }
+
+    void submit(AlbumRoot albumRoot) throws InterruptedException {
+        mWriteQueue.put(albumRoot);
+    }
+
+    void submit(AlbumRoot albumRoot, Album album) throws InterruptedException {
+        mWriteQueue.put(new AlbumTask(albumRoot, album));
+    }
+
+    void submit(Album album, Path path, BasicFileAttributes attrs, Long replaceId) throws InterruptedException {
+        mUpdateJob.fileSubmitted();
+        mScanQueue.put(new ScanTask(album, path, attrs, replaceId));
+    }
+
+    /**
+     * Marks dir as completed once the writer has received submitted images
+     * for album.
+     */
+    void submitCompleted(Path dir, long modificationMillis, Album album, int submitted) throws InterruptedException {
+        mWriteQueue.put(new CompletedTask(dir, modificationMillis, album, submitted));
+    }
+
+    void submitDelete(BaseManager manager, Long id) throws InterruptedException {
+        mWriteQueue.put(new DeleteTask(manager, id));
+    }
+
+    private void abort() {
+        LOGGER.warning("Scan interrupted");
+        mWorkers.forEach(worker -> worker.interrupt());
+        mWriter.interrupt();
+
+        boolean interrupted = Thread.interrupted();
+        for (Thread worker : mWorkers) {
+            interrupted |= joinUninterruptibly(worker);
+        }
+        interrupted |= joinUninterruptibly(mWriter);
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the scan, called by the writer when it can not go on.
+     */
+    private void fail(String message, Exception ex) {
+        LOGGER.log(Level.SEVERE, message, ex);
+        mFailure = new IOException(message, ex);
+        mWorkers.forEach(worker -> worker.interrupt());
+        mScanThread.interrupt();
+    }
+
+    private boolean finish() {
+        try {
+            for (int i = 0; i < mWorkers.size(); i++) {
+                mScanQueue.put(SCAN_POISON);
+            }
+            for (Thread worker : mWorkers) {
+                worker.join();
+            }
+
+            mWriteQueue.put(WRITE_POISON);
+            mWriter.join();
+
+            return true;
+        } catch (InterruptedException ex) {
+            return false;
+        }
+    }
+
+    private boolean joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+
+        return interrupted;
+    }
+
+    private void start() {
+        for (int i = 0; i < mConfig.getScanThreads(); i++) {
+            Thread worker = new Thread(this::work, String.format("ScanWorker-%d", i));
+            mWorkers.add(worker);
+            worker.start();
+        }
+
+        mWriter = new Thread(new Writer(), "ScanWriter");
+        mWriter.start();
+    }
+
+    /**
+     * Deletes the albums and album roots below path that were not visited.
+     */
+    private boolean submitVanished(Path path, FileVisitor fileVisitor) throws SQLException {
+        try {
+            for (Map.Entry<Long, String> entry : AlbumManager.getInstance().getAlbumPaths().entrySet()) {
+                Long albumId = entry.getKey();
+                if (!fileVisitor.getVisitedAlbumIds().contains(albumId) && Paths.get(entry.getValue()).startsWith(path)) {
+                    LOGGER.log(Level.INFO, "Removing album: {0}", entry.getValue());
+                    for (FrameImage frameImage : ImageManager.getInstance().getAlbumImages(albumId).values()) {
+                        submitDelete(ImageManager.getInstance(), frameImage.getId());
+                    }
+                    submitDelete(AlbumManager.getInstance(), albumId);
+                }
+            }
+
+            for (Map.Entry<Long, String> entry : AlbumRootManager.getInstance().getAlbumRootPaths().entrySet()) {
+                Long albumRootId = entry.getKey();
+                if (!fileVisitor.getVisitedAlbumRootIds().contains(albumRootId) && Paths.get(entry.getValue()).startsWith(path)) {
+                    LOGGER.log(Level.INFO, "Removing album root: {0}", entry.getValue());
+                    submitDelete(AlbumRootManager.getInstance(), albumRootId);
+                }
+            }
+        } catch (InterruptedException ex) {
+            return false;
+        }
+
+        return true;
+    }
+
+    private void work() {
+        FrameImageLoader frameImageLoader = new FrameImageLoader();
+
+        try {
+            while (true) {
+                ScanTask task = mScanQueue.take();
+                if (task == SCAN_POISON) {
+                    break;
+                }
+
+                FrameImage frameImage = null;
+                try {
+                    frameImage = frameImageLoader.load(task.mPath, task.mAttrs);
+                    if (frameImage != null) {
+                        mUpdateJob.fileIndexed(task.mAttrs.size());
+                    } else {
+                        mUpdateJob.fileIgnored();
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    mUpdateJob.fileFailed();
+                    LOGGER.log(Level.SEVERE, String.format("Failed to load %s", task.mPath), ex);
+                }
+
+                //Always passed on, the writer counts the images of each album
+                mWriteQueue.put(new ImageTask(task.mAlbum, frameImage, task.mReplaceId));
+            }
+        } catch (InterruptedException ex) {
+            //Aborted
+        }
+    }
+
+    private static class AlbumTask {
+
+        private final Album mAlbum;
+        private final AlbumRoot mAlbumRoot;
+
+        public AlbumTask(AlbumRoot albumRoot, Album album) {
+            mAlbumRoot = albumRoot;
+            mAlbum = album;
+        }
+    }
+
+    private static class CompletedTask {
+
+        private final Album mAlbum;
+        private final Path mDir;
+        private final long mModificationMillis;
+        private final int mSubmitted;
+
+        public CompletedTask(Path dir, long modificationMillis, Album album, int submitted) {
+            mDir = dir;
+            mModificationMillis = modificationMillis;
+            mAlbum = album;
+            mSubmitted = submitted;
+        }
+    }
+
+    private static class DeleteTask {
+
+        private final Long mId;
+        private final BaseManager mManager;
+
+        public DeleteTask(BaseManager manager, Long id) {
+            mManager = manager;
+            mId = id;
+        }
+    }
+
+    private static class ImageTask {
+
+        private final Album mAlbum;
+        private final FrameImage mFrameImage;
+        private final Long mReplaceId;
+
+        public ImageTask(Album album, FrameImage frameImage, Long replaceId) {
+            mAlbum = album;
+            mFrameImage = frameImage;
+            mReplaceId = replaceId;
+        }
+    }
+
+    private static class ScanTask {
+
+        private final Album mAlbum;
+        private final BasicFileAttributes mAttrs;
+        private final Path mPath;
+        private final Long mReplaceId;
+
+        public ScanTask(Album album, Path path, BasicFileAttributes attrs, Long replaceId) {
+            mAlbum = album;
+            mPath = path;
+            mAttrs = attrs;
+            mReplaceId = replaceId;
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        private final Map<Album, CompletedTask> mCompletedTasks = new IdentityHashMap<>();
+        private long mLastCommit;
+        private final Map<String, Long> mPendingDirectories = new LinkedHashMap<>();
+        private final List<FrameImage> mPendingImages = new ArrayList<>();
+        private final Set<Long> mUncommittedDeletes = new HashSet<>();
+        private final List<FrameImage> mUncommittedImages = new ArrayList<>();
+        private int mUncommittedRows;
+        private final Map<Album, Integer> mWrittenImages = new IdentityHashMap<>();
+
+        @Override
+        public void run() {
+            long commitInterval = TimeUnit.SECONDS.toMillis(mConfig.getScanCommitInterval());
+            mLastCommit = System.currentTimeMillis();
+
+            try {
+                while (true) {
+                    long timeout = mLastCommit + commitInterval - System.currentTimeMillis();
+                    Object item = mWriteQueue.poll(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+                    if (item == WRITE_POISON) {
+                        commit();
+                        break;
+                    }
+
+                    if (item != null && !write(item)) {
+                        break;
+                    }
+
+                    if (mUncommittedRows >= mConfig.getScanCommitRows()
+                            || (mUncommittedRows > 0 && System.currentTimeMillis() - mLastCommit >= commitInterval)) {
+                        if (!commit()) {
+                            break;
+                        }
+                    } else if (mUncommittedRows == 0) {
+                        mLastCommit = System.currentTimeMillis();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                //Aborted
+            } catch (RuntimeException ex) {
+                fail("Scan writer failed", ex);
+            }
+        }
+
+        private void checkCompleted(Album album) {
+            CompletedTask task = mCompletedTasks.get(album);
+
+            if (task != null && task.mSubmitted == mWrittenImages.getOrDefault(album, 0)) {
+                mCompletedTasks.remove(album);
+                mWrittenImages.remove(album);
+                mPendingDirectories.put(task.mDir.toString(), task.mModificationMillis);
+            }
+        }
+
+        /**
+         * @return false if the chunk was rolled back and the scan failed
+         */
+        private boolean commit() {
+            if (!writeImages()) {
+                return false;
+            }
+
+            try {
+                UpdateProgressManager.getInstance().insert(mPendingDirectories);
+                mDb.connectionCommit();
+            } catch (ClassNotFoundException | SQLException ex) {
+                //The progress must not claim rows that were not stored
+                mDb.connectionRollback();
+                fail("Commit failed", ex);
+                return false;
+            }
+
+            if (!mUpdateJob.isRebuild()) {
+                ImageCatalog.getInstance().remove(mUncommittedDeletes);
+                ImageCatalog.getInstance().add(mUncommittedImages);
+            }
+
+            mPendingDirectories.clear();
+            mUncommittedDeletes.clear();
+            mUncommittedImages.clear();
+            mUncommittedRows = 0;
+            mLastCommit = System.currentTimeMillis();
+
+            return true;
+        }
+
+        /**
+         * @return false if the scan failed
+         */
+        private boolean write(Object item) {
+            try {
+                if (item instanceof AlbumRoot) {
+                    AlbumRoot albumRoot = (AlbumRoot) item;
+                    albumRoot.setId(AlbumRootManager.getInstance().insert(albumRoot));
+                    mUncommittedRows++;
+                } else if (item instanceof AlbumTask) {
+                    AlbumTask task = (AlbumTask) item;
+                    task.mAlbum.setAlbumRootId(task.mAlbumRoot.getId());
+                    task.mAlbum.setId(AlbumManager.getInstance().insert(task.mAlbum));
+                    mUncommittedRows++;
+                } else if (item instanceof ImageTask) {
+                    ImageTask task = (ImageTask) item;
+                    mWrittenImages.merge(task.mAlbum, 1, Integer::sum);
+                    if (task.mReplaceId != null) {
+                        ImageManager.getInstance().delete(task.mReplaceId);
+                        mUncommittedDeletes.add(task.mReplaceId);
+                        mUncommittedRows++;
+                    }
+                    if (task.mFrameImage != null) {
+                        task.mFrameImage.setAlbumId(task.mAlbum.getId());
+                        mPendingImages.add(task.mFrameImage);
+                        mUncommittedRows++;
+                        if (mPendingImages.size() >= mConfig.getScanBatchSize() && !writeImages()) {
+                            return false;
+                        }
+                    }
+                    checkCompleted(task.mAlbum);
+                } else if (item instanceof CompletedTask) {
+                    CompletedTask task = (CompletedTask) item;
+                    mCompletedTasks.put(task.mAlbum, task);
+                    checkCompleted(task.mAlbum);
+                } else if (item instanceof DeleteTask) {
+                    DeleteTask task = (DeleteTask) item;
+                    task.mManager.delete(task.mId);
+                    if (task.mManager instanceof ImageManager) {
+                        mUncommittedDeletes.add(task.mId);
+                    }
+                    mUncommittedRows++;
+                }
+            } catch (ClassNotFoundException | SQLException ex) {
+                //Images would be stored without their album and their
+                //directory marked as completed
+                mDb.connectionRollback();
+                fail("Write failed", ex);
+                return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Inserts the pending images as one batch. If the batch fails it is
+         * rolled back and retried row by row, skipping the rows that fail.
+         *
+         * @return false if the images could not be rolled back and the scan
+         * failed
+         */
+        private boolean writeImages() {
+            Connection connection = mDb.getConnection();
+
+            try {
+                Savepoint savepoint = connection.setSavepoint();
+                try {
+                    ImageManager.getInstance().insert(mPendingImages);
+                    connection.releaseSavepoint(savepoint);
+                    mUncommittedImages.addAll(mPendingImages);
+                } catch (SQLException ex) {
+                    LOGGER.log(Level.WARNING, String.format("Failed to insert %d images, retrying one by one", mPendingImages.size()), ex);
+                    connection.rollback(savepoint);
+
+                    for (FrameImage frameImage : mPendingImages) {
+                        Savepoint rowSavepoint = connection.setSavepoint();
+                        try {
+                            ImageManager.getInstance().insert(frameImage);
+                            connection.releaseSavepoint(rowSavepoint);
+                            mUncommittedImages.add(frameImage);
+                        } catch (SQLException ex2) {
+                            connection.rollback(rowSavepoint);
+                            mUpdateJob.fileFailed();
+                            LOGGER.log(Level.SEVERE, String.format("Failed to insert %s", frameImage.getName()), ex2);
+                        }
+                    }
+                }
+            } catch (ClassNotFoundException | SQLException ex) {
+                fail("Failed to insert images", ex);
+                return false;
+            } finally {
+                mPendingImages.clear();
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.idd.db;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An UPDATE of a path and its progress.
+ *
+ * The counters are updated by the scan threads and may be read at any time.
+ *
+ * @author Patrik Karlström
+ */
+public class UpdateJob {
+
+    private final AtomicLong mBytesHashed = new AtomicLong();
+    private volatile long mEndTime;
+    private final AtomicLong mFilesFailed = new AtomicLong();
+    private final AtomicLong mFilesIgnored = new AtomicLong();
+    private final AtomicLong mFilesIndexed = new AtomicLong();
+    private final AtomicLong mFilesSeen = new AtomicLong();
+    private final AtomicLong mFilesSubmitted = new AtomicLong();
+    private final long mId;
+    private final String mPath;
+    private final boolean mRebuild;
+    private volatile long mStartTime;
+    private volatile State mState = State.QUEUED;
+
+    UpdateJob(long id, String path, boolean rebuild) {
+        mId = id;
+        mPath = path;
+        mRebuild = rebuild;
+    }
+
+    public long getBytesHashed() {
+        return mBytesHashed.get();
+    }
+
+    /**
+     * @return estimated seconds left for the files found so far, or -1 if
+     * unknown
+     */
+    public long getEta() {
+        double filesPerSecond = getFilesPerSecond();
+        long remaining = Math.max(0, mFilesSubmitted.get() - mFilesIndexed.get() - mFilesIgnored.get() - mFilesFailed.get());
+
+        if (mState != State.RUNNING || filesPerSecond <= 0) {
+            return -1;
+        }
+
+        return Math.round(remaining / filesPerSecond);
+    }
+
+    public long getFilesFailed() {
+        return mFilesFailed.get();
+    }
+
+    public long getFilesIndexed() {
+        return mFilesIndexed.get();
+    }
+
+    public double getFilesPerSecond() {
+        double seconds = getSeconds();
+
+        return seconds > 0 ? mFilesIndexed.get() / seconds : 0;
+    }
+
+    public long getFilesSeen() {
+        return mFilesSeen.get();
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return the status lines of this job, one "key: value" per line
+     */
+    public String getStatus() {
+        StringBuilder builder = new StringBuilder()
+                .append("job: ").append(mId).append("\n")
+                .append("job_state: ").append(mState.name().toLowerCase(Locale.ROOT)).append("\n")
+                .append("job_path: ").append(mPath).append("\n")
+                .append("job_rebuild: ").append(mRebuild).append("\n")
+                .append("job_time: ").append(Math.round(getSeconds())).append("\n")
+                .append("files_seen: ").append(getFilesSeen()).append("\n")
+                .append("files_indexed: ").append(getFilesIndexed()).append("\n")
+                .append("files_failed: ").append(getFilesFailed()).append("\n")
+                .append("bytes_hashed: ").append(getBytesHashed()).append("\n")
+                .append("files_per_second: ").append(String.format(Locale.ROOT, "%.1f", getFilesPerSecond())).append("\n")
+                .append("bytes_per_second: ").append(Math.round(getBytesHashed() / Math.max(getSeconds(), 0.001)));
+
+        long eta = getEta();
+        if (eta >= 0) {
+            builder.append("\n").append("eta: ").append(eta);
+        }
+
+        return builder.toString();
+    }
+
+    public boolean isDone() {
+        return mState != State.QUEUED && mState != State.RUNNING;
+    }
+
+    /**
+     * @return true if the catalog is rebuilt from scratch
+     */
+    public boolean isRebuild() {
+        return mRebuild;
+    }
+
+    void fileFailed() {
+        mFilesFailed.incrementAndGet();
+    }
+
+    void fileIgnored() {
+        mFilesIgnored.incrementAndGet();
+    }
+
+    void fileIndexed(long bytes) {
+        mFilesIndexed.incrementAndGet();
+        mBytesHashed.addAndGet(bytes);
+    }
+
+    void fileSeen() {
+        mFilesSeen.incrementAndGet();
+    }
+
+    void fileSubmitted() {
+        mFilesSubmitted.incrementAndGet();
+    }
+
+    void setState(State state) {
+        if (state == State.RUNNING) {
+            mStartTime = System.currentTimeMillis();
+        } else if (state != State.QUEUED) {
+            mEndTime = System.currentTimeMillis();
+        }
+
+        mState = state;
+    }
+
+    private double getSeconds() {
+        if (mStartTime == 0) {
+            return 0;
+        }
+
+        long endTime = mEndTime == 0 ? System.currentTimeMillis() : mEndTime;
+
+        return (endTime - mStartTime) / 1000.0;
+    }
+
+    public enum State {
+        QUEUED, RUNNING, DONE, INTERRUPTED, FAILED;
+    }
+}
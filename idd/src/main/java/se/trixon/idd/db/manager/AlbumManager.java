@@ -15,13 +15,20 @@
  */
 package se.trixon.idd.db.manager;
 
+import com.healthmarketscience.sqlbuilder.BinaryCondition;
+import com.healthmarketscience.sqlbuilder.ComboCondition;
 import com.healthmarketscience.sqlbuilder.InsertQuery;
+import com.healthmarketscience.sqlbuilder.SelectQuery;
 import com.healthmarketscience.sqlbuilder.dbspec.Constraint;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbColumn;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbConstraint;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import se.trixon.idd.db.ConnectionPool.PooledConnection;
 import se.trixon.idl.db.Album;
 
 /**
@@ -80,6 +87,93 @@ public class AlbumManager extends BaseManager {
         mDb.create(mTable, primaryKeyConstraint, uniqueKeyConstraint);
     }
 
+    /**
+     * @return full album paths, album root path + relative path, by album id
+     * @throws SQLException
+     */
+    public Map<Long, String> getAlbumPaths() throws SQLException {
+        return getAlbumPaths(null);
+    }
+
+    /**
+     * @param schema the schema to read, the catalog if null
+     * @return full album paths, album root path + relative path, by album id
+     * @throws SQLException
+     */
+    public Map<Long, String> getAlbumPaths(String schema) throws SQLException {
+        AlbumRootManager albumRootManager = AlbumRootManager.getInstance();
+        Map<Long, String> albumPaths = new HashMap<>();
+
+        try (PooledConnection connection = mDb.borrowConnection(schema)) {
+            PreparedStatement statement = getReadStatement(connection, "getAlbumPaths", queryPreparer -> new SelectQuery()
+                    .addColumns(mId, albumRootManager.columns().getSpecificPath(), mRelativePath)
+                    .addJoin(SelectQuery.JoinType.INNER,
+                            mTable,
+                            albumRootManager.getTable(),
+                            mAlbumRootId,
+                            albumRootManager.getId()
+                    )
+            );
+
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    albumPaths.put(rs.getLong(1), rs.getString(2) + rs.getString(3));
+                }
+            }
+        }
+
+        return albumPaths;
+    }
+
+    public Long getId(Long albumRootId, String relativePath) throws SQLException {
+        try (PooledConnection connection = mDb.borrowConnection()) {
+            PreparedStatement statement = getReadStatement(connection, "getId", queryPreparer -> new SelectQuery()
+                    .addColumns(mId)
+                    .addCondition(ComboCondition.and(
+                            BinaryCondition.equalTo(mAlbumRootId, queryPreparer.getNewPlaceHolder()),
+                            BinaryCondition.equalTo(mRelativePath, queryPreparer.getNewPlaceHolder())
+                    ))
+            );
+
+            statement.setLong(1, albumRootId);
+            statement.setString(2, relativePath);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : null;
+            }
+        }
+    }
+
+    /**
+     * @return relative album paths by album id
+     * @throws SQLException
+     */
+    public Map<Long, String> getRelativePaths() throws SQLException {
+        return getRelativePaths(null);
+    }
+
+    /**
+     * @param schema the schema to read, the catalog if null
+     * @return relative album paths by album id
+     * @throws SQLException
+     */
+    public Map<Long, String> getRelativePaths(String schema) throws SQLException {
+        Map<Long, String> relativePaths = new HashMap<>();
+
+        try (PooledConnection connection = mDb.borrowConnection(schema)) {
+            PreparedStatement statement = getReadStatement(connection, "getRelativePaths", queryPreparer -> new SelectQuery()
+                    .addColumns(mId, mRelativePath)
+            );
+
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    relativePaths.put(rs.getLong(1), rs.getString(2));
+                }
+            }
+        }
+
+        return relativePaths;
+    }
+
     public Long insert(Album album) throws ClassNotFoundException, SQLException {
         if (mInsertPreparedStatement == null) {
             prepareInsert();
@@ -15,13 +15,19 @@
  */
 package se.trixon.idd.db.manager;
 
+import com.healthmarketscience.sqlbuilder.BinaryCondition;
 import com.healthmarketscience.sqlbuilder.InsertQuery;
+import com.healthmarketscience.sqlbuilder.SelectQuery;
 import com.healthmarketscience.sqlbuilder.dbspec.Constraint;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbColumn;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbConstraint;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import se.trixon.idd.db.ConnectionPool.PooledConnection;
 import se.trixon.idl.db.AlbumRoot;
 
 /**
@@ -72,6 +78,42 @@ public class AlbumRootManager extends BaseManager {
         mDb.create(mTable, primaryKeyConstraint, uniqueKeyConstraint);
     }
 
+    /**
+     * @return album root paths by id
+     * @throws SQLException
+     */
+    public Map<Long, String> getAlbumRootPaths() throws SQLException {
+        Map<Long, String> albumRootPaths = new HashMap<>();
+
+        try (PooledConnection connection = mDb.borrowConnection()) {
+            PreparedStatement statement = getReadStatement(connection, "getAlbumRootPaths", queryPreparer -> new SelectQuery()
+                    .addColumns(mId, mSpecificPath)
+            );
+
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    albumRootPaths.put(rs.getLong(1), rs.getString(2));
+                }
+            }
+        }
+
+        return albumRootPaths;
+    }
+
+    public Long getId(String specificPath) throws SQLException {
+        try (PooledConnection connection = mDb.borrowConnection()) {
+            PreparedStatement statement = getReadStatement(connection, "getId", queryPreparer -> new SelectQuery()
+                    .addColumns(mId)
+                    .addCondition(BinaryCondition.equalTo(mSpecificPath, queryPreparer.getNewPlaceHolder()))
+            );
+
+            statement.setString(1, specificPath);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : null;
+            }
+        }
+    }
+
     public Long insert(AlbumRoot albumRoot) throws SQLException, ClassNotFoundException {
         if (mInsertPreparedStatement == null) {
             prepareInsert();
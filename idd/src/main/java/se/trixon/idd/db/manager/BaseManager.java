@@ -15,6 +15,10 @@
  */
 package se.trixon.idd.db.manager;
 
+import com.healthmarketscience.sqlbuilder.BinaryCondition;
+import com.healthmarketscience.sqlbuilder.DeleteQuery;
+import com.healthmarketscience.sqlbuilder.QueryPreparer;
+import com.healthmarketscience.sqlbuilder.SelectQuery;
 import com.healthmarketscience.sqlbuilder.dbspec.Constraint;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbColumn;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbConstraint;
@@ -23,6 +27,11 @@ import com.healthmarketscience.sqlbuilder.dbspec.basic.DbTable;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import se.trixon.idd.db.ConnectionPool.PooledConnection;
 import se.trixon.idd.db.Db;
 import se.trixon.idd.db.PlaceHolderController;
 
@@ -43,17 +52,66 @@ public abstract class BaseManager {
     protected static final String SQL_VARCHAR = "VARCHAR";
 
     protected final Db mDb;
+    protected QueryPreparer.PlaceHolder mDeletePlaceHolder;
+    protected PreparedStatement mDeletePreparedStatement;
     protected DbColumn mId;
     protected PlaceHolderController mInsertPlaceHolders = new PlaceHolderController();
     protected PreparedStatement mInsertPreparedStatement;
     protected DbTable mTable;
+    private final List<DbColumn[]> mIndexes = new ArrayList<>();
 
     public BaseManager() {
         mDb = Db.getInstance();
     }
 
+    /**
+     * Closes the cached statements, they are prepared again when needed.
+     */
+    public void closeStatements() {
+        for (PreparedStatement preparedStatement : new PreparedStatement[]{mDeletePreparedStatement, mInsertPreparedStatement}) {
+            if (preparedStatement != null) {
+                try {
+                    preparedStatement.close();
+                } catch (SQLException ex) {
+                    //nvm
+                }
+            }
+        }
+
+        mDeletePreparedStatement = null;
+        mInsertPreparedStatement = null;
+    }
+
     public abstract void create();
 
+    /**
+     * Creates the secondary indexes added by the manager, existing ones are
+     * kept.
+     *
+     * @throws SQLException
+     */
+    public void createIndexes() throws SQLException {
+        for (DbColumn[] columns : mIndexes) {
+            mDb.createIndex(mTable, getIndexName(columns, "idx"), columns);
+        }
+    }
+
+    public void delete(Long id) throws SQLException {
+        if (mDeletePreparedStatement == null) {
+            prepareDelete();
+        }
+
+        mDeletePlaceHolder.setLong(id, mDeletePreparedStatement);
+        mDeletePreparedStatement.executeUpdate();
+    }
+
+    /**
+     * @return the number of columns selected by addAllTableColumns
+     */
+    public int getColumnCount() {
+        return mTable.getColumns().size();
+    }
+
     public DbColumn getId() {
         return mId;
     }
@@ -85,42 +143,77 @@ public abstract class BaseManager {
         return mTable;
     }
 
+    /**
+     * Adds a secondary index, created with {@link #createIndexes()}.
+     *
+     * @param columns
+     */
+    protected void addIndex(DbColumn... columns) {
+        mIndexes.add(columns);
+    }
+
     protected void addNotNullConstraints(DbColumn... columns) {
         for (DbColumn column : columns) {
             column.addConstraint(new DbConstraint(column, "nnc_" + column.getName(), Constraint.Type.NOT_NULL));
         }
     }
 
-    protected Double getDouble(ResultSet rs, DbColumn column) throws SQLException {
-        return getDouble(rs, column.getName());
+    /**
+     * @param offset the index of the first column of this table in the result
+     * @param column
+     * @return the index of column
+     */
+    protected int getColumnIndex(int offset, DbColumn column) {
+        return offset + mTable.getColumns().indexOf(column);
     }
 
-    protected Double getDouble(ResultSet rs, String columnName) throws SQLException {
-        return rs.getObject(columnName, Double.class);
+    protected Double getDouble(ResultSet rs, int offset, DbColumn column) throws SQLException {
+        return rs.getObject(getColumnIndex(offset, column), Double.class);
     }
 
-    protected Integer getInteger(ResultSet rs, DbColumn column) throws SQLException {
-        return getInteger(rs, column.getName());
+    protected Integer getInteger(ResultSet rs, int offset, DbColumn column) throws SQLException {
+        return rs.getObject(getColumnIndex(offset, column), Integer.class);
     }
 
-    protected Integer getInteger(ResultSet rs, String columnName) throws SQLException {
-        return rs.getObject(columnName, Integer.class);
+    protected Long getLong(ResultSet rs, int offset, DbColumn column) throws SQLException {
+        return rs.getObject(getColumnIndex(offset, column), Long.class);
     }
 
-    protected Long getLong(ResultSet rs, DbColumn column) throws SQLException {
-        return getLong(rs, column.getName());
+    /**
+     * Returns a read only, forward only statement prepared once per pooled
+     * connection, the query is only built then. Parameters are set by index,
+     * in the order their place holders were created.
+     *
+     * @param connection a connection borrowed from the pool
+     * @param key identifies the query within this manager
+     * @param queryBuilder
+     * @return
+     * @throws SQLException
+     */
+    protected PreparedStatement getReadStatement(PooledConnection connection, String key, Function<QueryPreparer, SelectQuery> queryBuilder) throws SQLException {
+        return connection.getStatement(getClass().getSimpleName() + "." + key, () -> {
+            return queryBuilder.apply(new QueryPreparer()).validate().toString();
+        });
     }
 
-    protected Long getLong(ResultSet rs, String columnName) throws SQLException {
-        return rs.getObject(columnName, Long.class);
+    protected String getString(ResultSet rs, int offset, DbColumn column) throws SQLException {
+        return rs.getString(getColumnIndex(offset, column));
     }
 
-    protected String getString(ResultSet rs, DbColumn column) throws SQLException {
-        return getString(rs, column.getName());
+    protected Timestamp getTimestamp(ResultSet rs, int offset, DbColumn column) throws SQLException {
+        return rs.getTimestamp(getColumnIndex(offset, column));
     }
 
-    protected String getString(ResultSet rs, String columnName) throws SQLException {
-        return rs.getString(columnName);
+    private void prepareDelete() throws SQLException {
+        QueryPreparer queryPreparer = new QueryPreparer();
+        mDeletePlaceHolder = queryPreparer.getNewPlaceHolder();
+
+        DeleteQuery deleteQuery = new DeleteQuery(mTable)
+                .addCondition(BinaryCondition.equalTo(mId, mDeletePlaceHolder))
+                .validate();
+
+        String sql = deleteQuery.toString();
+        mDeletePreparedStatement = mDb.getConnection().prepareStatement(sql);
     }
 
     public class Columns {
@@ -21,11 +21,14 @@ import com.healthmarketscience.sqlbuilder.SelectQuery;
 import com.healthmarketscience.sqlbuilder.dbspec.Constraint;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbColumn;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbConstraint;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import se.trixon.idd.db.ConnectionPool.PooledConnection;
 import se.trixon.idl.FrameImage;
 
 /**
@@ -71,6 +74,8 @@ public class ImageInformationManager extends BaseManager {
         manager = ImageManager.getInstance();
         indexName = getIndexName(new DbColumn[]{manager.getId()}, "fkey");
         mId.references(indexName, manager.getTable(), manager.getId());
+
+        addIndex(mCreationDate);
     }
 
     public Columns columns() {
@@ -86,53 +91,77 @@ public class ImageInformationManager extends BaseManager {
     }
 
     public FrameImage.Information getImageInformation(final Long imageId) {
-        FrameImage.Information information = null;
-
-        SelectQuery query = new SelectQuery()
-                .addAllTableColumns(mTable)
-                .addCondition(BinaryCondition.equalTo(mId, imageId))
-                .validate();
-
-        String sql = query.toString();
-        try (Statement statement = mDb.getAutoCommitConnection().createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE)) {
-            ResultSet rs = statement.executeQuery(sql);
-            rs.first();
-            information = new FrameImage.Information();
-            information.setColorDepth(getInteger(rs, mColorDepth));
-            information.setColorModel(getInteger(rs, mColorModel));
-            information.setCreationDate(rs.getTimestamp(mCreationDate.getName()));
-            information.setDigitizationDate(rs.getTimestamp(mDigitizationDate.getName()));
-            information.setFormat(getString(rs, mFormat));
-            information.setHeigth(getInteger(rs, mHeight));
-            information.setWidth(getInteger(rs, mWidth));
-            information.setImageId(getLong(rs, mId));
-            information.setOrientation(getInteger(rs, mOrientation));
-            information.setRating(getInteger(rs, mRating));
-        } catch (NullPointerException | SQLException ex) {
+        try (PooledConnection connection = mDb.borrowConnection()) {
+            PreparedStatement statement = getReadStatement(connection, "getImageInformation", queryPreparer -> new SelectQuery()
+                    .addAllTableColumns(mTable)
+                    .addCondition(BinaryCondition.equalTo(mId, queryPreparer.getNewPlaceHolder()))
+            );
+
+            statement.setLong(1, imageId);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? getImageInformation(rs, 1) : null;
+            }
+        } catch (SQLException ex) {
             LOGGER.log(Level.SEVERE, "dbError: getImageInformation{0}", ex);
-            information = null;
+            return null;
+        }
+    }
+
+    /**
+     * @param rs positioned on a row with all columns of this table
+     * @param offset the index of the first column of this table
+     * @return the information of the row, or null if there is none
+     * @throws SQLException
+     */
+    public FrameImage.Information getImageInformation(ResultSet rs, int offset) throws SQLException {
+        if (getLong(rs, offset, mId) == null) {
+            return null;
         }
 
+        FrameImage.Information information = new FrameImage.Information();
+        information.setColorDepth(getInteger(rs, offset, mColorDepth));
+        information.setColorModel(getInteger(rs, offset, mColorModel));
+        information.setCreationDate(getTimestamp(rs, offset, mCreationDate));
+        information.setDigitizationDate(getTimestamp(rs, offset, mDigitizationDate));
+        information.setFormat(getString(rs, offset, mFormat));
+        information.setHeigth(getInteger(rs, offset, mHeight));
+        information.setWidth(getInteger(rs, offset, mWidth));
+        information.setImageId(getLong(rs, offset, mId));
+        information.setOrientation(getInteger(rs, offset, mOrientation));
+        information.setRating(getInteger(rs, offset, mRating));
+
         return information;
     }
 
     public void insert(FrameImage.Information information) throws SQLException {
+        insert(Collections.singletonList(information));
+    }
+
+    public void insert(List<FrameImage.Information> informations) throws SQLException {
+        if (informations.isEmpty()) {
+            return;
+        }
+
         if (mInsertPreparedStatement == null) {
             prepareInsert();
         }
 
-        mInsertPlaceHolders.get(mId).setLong(information.getImageId(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mRating).setInt(information.getRating(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mCreationDate).setObject(information.getCreationDate(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mDigitizationDate).setObject(information.getDigitizationDate(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mOrientation).setInt(information.getOrientation(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mWidth).setInt(information.getWidth(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mHeight).setInt(information.getHeigth(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mFormat).setString(information.getFormat(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mColorDepth).setInt(information.getColorDepth(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mColorModel).setInt(information.getColorModel(), mInsertPreparedStatement);
-
-        mInsertPreparedStatement.executeUpdate();
+        for (FrameImage.Information information : informations) {
+            mInsertPlaceHolders.get(mId).setLong(information.getImageId(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mRating).setInt(information.getRating(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mCreationDate).setObject(information.getCreationDate(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mDigitizationDate).setObject(information.getDigitizationDate(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mOrientation).setInt(information.getOrientation(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mWidth).setInt(information.getWidth(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mHeight).setInt(information.getHeigth(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mFormat).setString(information.getFormat(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mColorDepth).setInt(information.getColorDepth(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mColorModel).setInt(information.getColorModel(), mInsertPreparedStatement);
+
+            mInsertPreparedStatement.addBatch();
+        }
+
+        mInsertPreparedStatement.executeBatch();
     }
 
     private void prepareInsert() throws SQLException {
@@ -163,7 +192,7 @@ public class ImageInformationManager extends BaseManager {
                 .validate();
 
         String sql = insertQuery.toString();
-        mInsertPreparedStatement = mDb.getConnection().prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        mInsertPreparedStatement = mDb.getConnection().prepareStatement(sql);
         //System.out.println(mInsertPreparedStatement.toString());
     }
 
@@ -16,18 +16,25 @@
 package se.trixon.idd.db.manager;
 
 import com.healthmarketscience.sqlbuilder.BinaryCondition;
-import com.healthmarketscience.sqlbuilder.CustomSql;
 import com.healthmarketscience.sqlbuilder.InsertQuery;
 import com.healthmarketscience.sqlbuilder.SelectQuery;
-import com.healthmarketscience.sqlbuilder.custom.postgresql.PgLimitClause;
 import com.healthmarketscience.sqlbuilder.dbspec.Constraint;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbColumn;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbConstraint;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import se.trixon.idd.db.ConnectionPool.PooledConnection;
+import se.trixon.idd.db.ImageCatalog;
+import se.trixon.idd.db.ImageFilter;
 import se.trixon.idl.FrameImage;
 
 /**
@@ -74,6 +81,8 @@ public class ImageManager extends BaseManager {
         mAlbumId.references(indexName, manager.getTable(), manager.getId());
 
         addNotNullConstraints(mName, mStatus, mCategory);
+
+        addIndex(mUniqueHash);
     }
 
     public Columns columns() {
@@ -92,53 +101,144 @@ public class ImageManager extends BaseManager {
         mDb.create(mTable, primaryKeyConstraint, uniqueKeyConstraint);
     }
 
+    /**
+     * Deletes the image and its information, metadata and position.
+     *
+     * @param id
+     * @throws SQLException
+     */
+    @Override
+    public void delete(Long id) throws SQLException {
+        ImagePositionManager.getInstance().delete(id);
+        ImageInformationManager.getInstance().delete(id);
+        ImageMetadataManager.getInstance().delete(id);
+        super.delete(id);
+    }
+
+    /**
+     * Returns the stored state of the images in an album, keyed by name.
+     *
+     * Only the columns of the image table are populated, this is what UPDATE
+     * uses to decide if a file has changed.
+     *
+     * @param albumId
+     * @return
+     * @throws SQLException
+     */
+    public Map<String, FrameImage> getAlbumImages(final Long albumId) throws SQLException {
+        Map<String, FrameImage> frameImages = new HashMap<>();
+
+        try (PooledConnection connection = mDb.borrowConnection()) {
+            PreparedStatement statement = getReadStatement(connection, "getAlbumImages", queryPreparer -> new SelectQuery()
+                    .addAllTableColumns(mTable)
+                    .addCondition(BinaryCondition.equalTo(mAlbumId, queryPreparer.getNewPlaceHolder()))
+            );
+
+            statement.setLong(1, albumId);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    FrameImage frameImage = new FrameImage();
+                    frameImage.setAlbumId(getLong(rs, 1, mAlbumId));
+                    frameImage.setFileSize(getLong(rs, 1, mFileSize));
+                    frameImage.setId(getLong(rs, 1, mId));
+                    frameImage.setModificationDate(getTimestamp(rs, 1, mModificationDate));
+                    frameImage.setName(getString(rs, 1, mName));
+                    frameImages.put(frameImage.getName(), frameImage);
+                }
+            }
+        }
+
+        return frameImages;
+    }
+
+    /**
+     * Loads the image with its information, metadata and position in one
+     * query.
+     *
+     * @param imageId
+     * @return the image, or null if not found
+     */
     public FrameImage getImage(final Long imageId) {
-        SelectQuery query = new SelectQuery()
-                .addAllTableColumns(mTable)
-                .addColumns(
-                        mAlbumRootManager.columns().getSpecificPath(),
-                        mAlbumManager.columns().getRelativePath()
-                )
-                .addJoin(SelectQuery.JoinType.INNER,
-                        mTable,
-                        mAlbumManager.mTable,
-                        mAlbumId,
-                        mAlbumManager.getId()
-                )
-                .addJoin(SelectQuery.JoinType.INNER,
-                        mAlbumManager.mTable,
-                        mAlbumRootManager.getTable(),
-                        mAlbumManager.columns().getAlbumRootId(),
-                        mAlbumRootManager.getId()
-                )
-                .addCondition(BinaryCondition.equalTo(mId, imageId))
-                .validate();
+        ImageInformationManager informationManager = ImageInformationManager.getInstance();
+        ImageMetadataManager metadataManager = ImageMetadataManager.getInstance();
+        ImagePositionManager positionManager = ImagePositionManager.getInstance();
 
-        String sql = query.toString();
+        //Column offsets in the order the tables are added
+        final int pathOffset = getColumnCount() + 1;
+        final int informationOffset = pathOffset + 2;
+        final int metadataOffset = informationOffset + informationManager.getColumnCount();
+        final int positionOffset = metadataOffset + metadataManager.getColumnCount();
 
         FrameImage frameImage;
-        try (Statement statement = mDb.getAutoCommitConnection().createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE)) {
-            ResultSet rs = statement.executeQuery(sql);
-            rs.first();
-            frameImage = new FrameImage();
-            frameImage.setAlbumId(getLong(rs, mAlbumId));
-            frameImage.setCategory(getInteger(rs, mCategory));
-            frameImage.setFileSize(getLong(rs, mFileSize));
-            frameImage.setId(getLong(rs, mId));
-            frameImage.setModificationDate(rs.getTimestamp(mModificationDate.getName()));
-            frameImage.setName(getString(rs, mName));
-            frameImage.setStatus(getInteger(rs, mStatus));
-            frameImage.setUniqueHash(getString(rs, mUniqueHash));
-
-            frameImage.setInformation(ImageInformationManager.getInstance().getImageInformation(imageId));
-            frameImage.setMetadata(ImageMetadataManager.getInstance().getImageMetadata(imageId));
-            frameImage.setPosition(ImagePositionManager.getInstance().getImagePosition(imageId));
-
-            String path = String.format("%s%s/%s",
-                    getString(rs, mAlbumRootManager.columns().getSpecificPath()),
-                    getString(rs, mAlbumManager.columns().getRelativePath()),
-                    getString(rs, mName));
-            frameImage.setPath(path);
+        try (PooledConnection connection = mDb.borrowConnection()) {
+            PreparedStatement statement = getReadStatement(connection, "getImage", queryPreparer -> new SelectQuery()
+                    .addAllTableColumns(mTable)
+                    .addColumns(
+                            mAlbumRootManager.columns().getSpecificPath(),
+                            mAlbumManager.columns().getRelativePath()
+                    )
+                    .addAllTableColumns(informationManager.getTable())
+                    .addAllTableColumns(metadataManager.getTable())
+                    .addAllTableColumns(positionManager.getTable())
+                    .addJoin(SelectQuery.JoinType.INNER,
+                            mTable,
+                            mAlbumManager.mTable,
+                            mAlbumId,
+                            mAlbumManager.getId()
+                    )
+                    .addJoin(SelectQuery.JoinType.INNER,
+                            mAlbumManager.mTable,
+                            mAlbumRootManager.getTable(),
+                            mAlbumManager.columns().getAlbumRootId(),
+                            mAlbumRootManager.getId()
+                    )
+                    .addJoin(SelectQuery.JoinType.LEFT_OUTER,
+                            mTable,
+                            informationManager.getTable(),
+                            mId,
+                            informationManager.getId()
+                    )
+                    .addJoin(SelectQuery.JoinType.LEFT_OUTER,
+                            mTable,
+                            metadataManager.getTable(),
+                            mId,
+                            metadataManager.getId()
+                    )
+                    .addJoin(SelectQuery.JoinType.LEFT_OUTER,
+                            mTable,
+                            positionManager.getTable(),
+                            mId,
+                            positionManager.getId()
+                    )
+                    .addCondition(BinaryCondition.equalTo(mId, queryPreparer.getNewPlaceHolder()))
+            );
+
+            statement.setLong(1, imageId);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException(String.format("Image not found: %d", imageId));
+                }
+
+                frameImage = new FrameImage();
+                frameImage.setAlbumId(getLong(rs, 1, mAlbumId));
+                frameImage.setCategory(getInteger(rs, 1, mCategory));
+                frameImage.setFileSize(getLong(rs, 1, mFileSize));
+                frameImage.setId(getLong(rs, 1, mId));
+                frameImage.setModificationDate(getTimestamp(rs, 1, mModificationDate));
+                frameImage.setName(getString(rs, 1, mName));
+                frameImage.setStatus(getInteger(rs, 1, mStatus));
+                frameImage.setUniqueHash(getString(rs, 1, mUniqueHash));
+
+                frameImage.setInformation(informationManager.getImageInformation(rs, informationOffset));
+                frameImage.setMetadata(metadataManager.getImageMetadata(rs, metadataOffset));
+                frameImage.setPosition(positionManager.getImagePosition(rs, positionOffset));
+
+                String path = String.format("%s%s/%s",
+                        rs.getString(pathOffset),
+                        rs.getString(pathOffset + 1),
+                        frameImage.getName());
+                frameImage.setPath(path);
+            }
         } catch (NullPointerException | SQLException ex) {
             LOGGER.log(Level.SEVERE, "dbError: getImage{0}", ex);
             frameImage = null;
@@ -147,70 +247,206 @@ public class ImageManager extends BaseManager {
         return frameImage;
     }
 
+    /**
+     * Reads the columns held by the {@link ImageCatalog} of all images.
+     *
+     * @param rows
+     * @param schema the schema to read, the catalog if null
+     * @throws SQLException
+     */
+    public void getCatalogRows(ImageCatalog.Rows rows, String schema) throws SQLException {
+        ImageInformationManager.Columns information = ImageInformationManager.getInstance().columns();
+        ImageMetadataManager.Columns metadata = ImageMetadataManager.getInstance().columns();
+        ImagePositionManager.Columns position = ImagePositionManager.getInstance().columns();
+
+        try (PooledConnection connection = mDb.borrowConnection(schema)) {
+            PreparedStatement statement = getReadStatement(connection, "getCatalogRows", queryPreparer -> new SelectQuery()
+                    .addColumns(
+                            mId,
+                            mAlbumId,
+                            information.getCreationDate(),
+                            information.getRating(),
+                            metadata.getMake(),
+                            metadata.getModel(),
+                            metadata.getLens(),
+                            position.getLatitudeNumber(),
+                            position.getLongitudeNumber(),
+                            mName,
+                            mUniqueHash
+                    )
+                    .addJoin(SelectQuery.JoinType.LEFT_OUTER,
+                            mTable,
+                            ImageInformationManager.getInstance().getTable(),
+                            mId,
+                            ImageInformationManager.getInstance().getId()
+                    )
+                    .addJoin(SelectQuery.JoinType.LEFT_OUTER,
+                            mTable,
+                            ImageMetadataManager.getInstance().getTable(),
+                            mId,
+                            ImageMetadataManager.getInstance().getId()
+                    )
+                    .addJoin(SelectQuery.JoinType.LEFT_OUTER,
+                            mTable,
+                            ImagePositionManager.getInstance().getTable(),
+                            mId,
+                            ImagePositionManager.getInstance().getId()
+                    )
+            );
+
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(rs.getLong(1),
+                            rs.getLong(2),
+                            rs.getTimestamp(3),
+                            rs.getObject(4, Integer.class),
+                            rs.getString(5),
+                            rs.getString(6),
+                            rs.getString(7),
+                            rs.getObject(8, Double.class),
+                            rs.getObject(9, Double.class),
+                            rs.getString(10),
+                            rs.getString(11)
+                    );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a random image
+     * @throws NullPointerException
+     * @throws SQLException
+     */
     public FrameImage getRandomImage() throws NullPointerException, SQLException {
-        return getImage(getRandomImageId());
+        return getRandomImage(ImageFilter.NONE);
     }
 
-    public Long getRandomImageId() throws NullPointerException, SQLException {
-        SelectQuery selectQuery = new SelectQuery()
-                .addColumns(mId)
-                .addCustomOrderings(new CustomSql("random()"))
-                .addCustomization(new PgLimitClause(1))
-                .validate();
+    /**
+     * Picks again if the id of an image deleted by a running update is
+     * picked.
+     *
+     * @param filter
+     * @return a random image matching filter
+     * @throws NullPointerException
+     * @throws SQLException
+     */
+    public FrameImage getRandomImage(ImageFilter filter) throws NullPointerException, SQLException {
+        if (!mDb.isOpen()) {
+            //Served from the catalog snapshot while the database opens
+            FrameImage frameImage = ImageCatalog.getInstance().getRandomImage(filter);
+            if (frameImage == null) {
+                throw getNoImagesException(filter);
+            }
 
-        String sql = selectQuery.toString();
+            return frameImage;
+        }
 
-        try (Statement statement = mDb.getAutoCommitConnection().createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE)) {
-            ResultSet rs = statement.executeQuery(sql);
-            rs.first();
-            return rs.getLong(mId.getName());
-        } catch (NullPointerException | SQLException ex) {
+        mDb.getCatalogLock().readLock().lock();
+        try {
+            FrameImage frameImage = null;
+            for (int i = 0; i < 3 && frameImage == null; i++) {
+                frameImage = getImage(getRandomImageId(filter));
+            }
+
+            return frameImage;
+        } finally {
+            mDb.getCatalogLock().readLock().unlock();
+        }
+    }
+
+    public Long getRandomImageId() throws NullPointerException, SQLException {
+        return getRandomImageId(ImageFilter.NONE);
+    }
+
+    public Long getRandomImageId(ImageFilter filter) throws NullPointerException, SQLException {
+        Long id = ImageCatalog.getInstance().getRandomId(filter);
+        if (id == null) {
             LOGGER.severe("dbError: getRandomImageId");
-            throw ex;
+            throw getNoImagesException(filter);
         }
+
+        return id;
     }
 
     public Long insert(FrameImage image) throws ClassNotFoundException, SQLException {
+        insert(Collections.singletonList(image));
+
+        return image.getId();
+    }
+
+    /**
+     * Inserts the images with one batch per table and sets their ids. A
+     * failed batch may leave some of the rows written, the caller rolls them
+     * back.
+     *
+     * @param images
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public void insert(List<FrameImage> images) throws ClassNotFoundException, SQLException {
+        if (images.isEmpty()) {
+            return;
+        }
+
         if (mInsertPreparedStatement == null) {
             prepareInsert();
         }
 
-        mInsertPlaceHolders.get(mAlbumId).setLong(image.getAlbumId(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mCategory).setInt(image.getCategory(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mFileSize).setLong(image.getFileSize(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mModificationDate).setObject(image.getModificationDate(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mName).setString(image.getName(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mStatus).setInt(image.getStatus(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mUniqueHash).setString(image.getUniqueHash(), mInsertPreparedStatement);
-
-        int affectedRows = mInsertPreparedStatement.executeUpdate();
-        if (affectedRows == 0) {
-            throw new SQLException("Creating image failed, no rows affected.");
+        for (FrameImage image : images) {
+            mInsertPlaceHolders.get(mAlbumId).setLong(image.getAlbumId(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mCategory).setInt(image.getCategory(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mFileSize).setLong(image.getFileSize(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mModificationDate).setObject(image.getModificationDate(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mName).setString(image.getName(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mStatus).setInt(image.getStatus(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mUniqueHash).setString(image.getUniqueHash(), mInsertPreparedStatement);
+
+            mInsertPreparedStatement.addBatch();
         }
 
-        try (ResultSet generatedKeys = mInsertPreparedStatement.getGeneratedKeys()) {
-            if (generatedKeys.next()) {
-                Long imageId = generatedKeys.getLong(1);
+        mInsertPreparedStatement.executeBatch();
 
-                if (image.getPosition().hasData()) {
-                    image.getPosition().setImageId(imageId);
-                    ImagePositionManager.getInstance().insert(image.getPosition());
+        try (ResultSet generatedKeys = mInsertPreparedStatement.getGeneratedKeys()) {
+            for (FrameImage image : images) {
+                if (generatedKeys.next()) {
+                    image.setId(generatedKeys.getLong(1));
+                } else {
+                    throw new SQLException("Creating image failed, no ID obtained.");
                 }
+            }
+        }
 
-                if (image.getInformation().hasData()) {
-                    image.getInformation().setImageId(imageId);
-                    ImageInformationManager.getInstance().insert(image.getInformation());
-                }
+        List<FrameImage.Information> informations = new ArrayList<>();
+        List<FrameImage.Metadata> metadatas = new ArrayList<>();
+        List<FrameImage.Position> positions = new ArrayList<>();
 
-                if (image.getMetadata().hasData()) {
-                    image.getMetadata().setImageId(imageId);
-                    ImageMetadataManager.getInstance().insert(image.getMetadata());
-                }
-                return imageId;
-            } else {
-                throw new SQLException("Creating image failed, no ID obtained.");
+        for (FrameImage image : images) {
+            Long imageId = image.getId();
+
+            if (image.getPosition().hasData()) {
+                image.getPosition().setImageId(imageId);
+                positions.add(image.getPosition());
+            }
+
+            if (image.getInformation().hasData()) {
+                image.getInformation().setImageId(imageId);
+                informations.add(image.getInformation());
+            }
+
+            if (image.getMetadata().hasData()) {
+                image.getMetadata().setImageId(imageId);
+                metadatas.add(image.getMetadata());
             }
         }
+
+        ImagePositionManager.getInstance().insert(positions);
+        ImageInformationManager.getInstance().insert(informations);
+        ImageMetadataManager.getInstance().insert(metadatas);
+    }
+
+    private SQLException getNoImagesException(ImageFilter filter) {
+        return new SQLException(filter.isEmpty() ? "No images" : String.format("No images matching %s", filter));
     }
 
     private void prepareInsert() throws SQLException {
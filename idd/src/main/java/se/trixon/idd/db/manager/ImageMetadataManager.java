@@ -21,11 +21,14 @@ import com.healthmarketscience.sqlbuilder.SelectQuery;
 import com.healthmarketscience.sqlbuilder.dbspec.Constraint;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbColumn;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbConstraint;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import se.trixon.idd.db.ConnectionPool.PooledConnection;
 import se.trixon.idl.FrameImage;
 
 /**
@@ -85,6 +88,8 @@ public class ImageMetadataManager extends BaseManager {
         manager = ImageManager.getInstance();
         indexName = getIndexName(new DbColumn[]{manager.getId()}, "fkey");
         mId.references(indexName, manager.getTable(), manager.getId());
+
+        addIndex(mMake, mModel);
     }
 
     public Columns columns() {
@@ -100,67 +105,91 @@ public class ImageMetadataManager extends BaseManager {
     }
 
     public FrameImage.Metadata getImageMetadata(final Long imageId) {
-        FrameImage.Metadata metadata;
-
-        SelectQuery query = new SelectQuery()
-                .addAllTableColumns(mTable)
-                .addCondition(BinaryCondition.equalTo(mId, imageId))
-                .validate();
-
-        String sql = query.toString();
-        try (Statement statement = mDb.getAutoCommitConnection().createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE)) {
-            ResultSet rs = statement.executeQuery(sql);
-            rs.first();
-            metadata = new FrameImage.Metadata();
-            metadata.setAperture(getDouble(rs, mAperture));
-            metadata.setExposureMode(getInteger(rs, mExposureMode));
-            metadata.setExposureProgram(getInteger(rs, mExposureProgram));
-            metadata.setExposureTime(getDouble(rs, mExposureTime));
-            metadata.setFlash(getInteger(rs, mFlash));
-            metadata.setFocalLength(getDouble(rs, mFocalLength));
-            metadata.setFocalLength35(getDouble(rs, mFocalLength35));
-            metadata.setImageId(getLong(rs, mId));
-            metadata.setLens(getString(rs, mLens));
-            metadata.setMake(getString(rs, mMake));
-            metadata.setMeteringMode(getInteger(rs, mMeteringMode));
-            metadata.setModel(getString(rs, mModel));
-            metadata.setSensitivity(getInteger(rs, mSensitivity));
-            metadata.setSubjectDistance(getString(rs, mSubjectDistance));
-            metadata.setSubjectDistanceCategory(getInteger(rs, mSubjectDistanceCategory));
-            metadata.setWhiteBalance(getInteger(rs, mWhiteBalance));
-            metadata.setWhiteBalanceColorTemperature(getInteger(rs, mWhiteBalanceColorTemperature));
-        } catch (NullPointerException | SQLException ex) {
+        try (PooledConnection connection = mDb.borrowConnection()) {
+            PreparedStatement statement = getReadStatement(connection, "getImageMetadata", queryPreparer -> new SelectQuery()
+                    .addAllTableColumns(mTable)
+                    .addCondition(BinaryCondition.equalTo(mId, queryPreparer.getNewPlaceHolder()))
+            );
+
+            statement.setLong(1, imageId);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? getImageMetadata(rs, 1) : null;
+            }
+        } catch (SQLException ex) {
             LOGGER.log(Level.SEVERE, "dbError: getImageMetadata{0}", ex);
-            metadata = null;
+            return null;
+        }
+    }
+
+    /**
+     * @param rs positioned on a row with all columns of this table
+     * @param offset the index of the first column of this table
+     * @return the metadata of the row, or null if there is none
+     * @throws SQLException
+     */
+    public FrameImage.Metadata getImageMetadata(ResultSet rs, int offset) throws SQLException {
+        if (getLong(rs, offset, mId) == null) {
+            return null;
         }
 
+        FrameImage.Metadata metadata = new FrameImage.Metadata();
+        metadata.setAperture(getDouble(rs, offset, mAperture));
+        metadata.setExposureMode(getInteger(rs, offset, mExposureMode));
+        metadata.setExposureProgram(getInteger(rs, offset, mExposureProgram));
+        metadata.setExposureTime(getDouble(rs, offset, mExposureTime));
+        metadata.setFlash(getInteger(rs, offset, mFlash));
+        metadata.setFocalLength(getDouble(rs, offset, mFocalLength));
+        metadata.setFocalLength35(getDouble(rs, offset, mFocalLength35));
+        metadata.setImageId(getLong(rs, offset, mId));
+        metadata.setLens(getString(rs, offset, mLens));
+        metadata.setMake(getString(rs, offset, mMake));
+        metadata.setMeteringMode(getInteger(rs, offset, mMeteringMode));
+        metadata.setModel(getString(rs, offset, mModel));
+        metadata.setSensitivity(getInteger(rs, offset, mSensitivity));
+        metadata.setSubjectDistance(getString(rs, offset, mSubjectDistance));
+        metadata.setSubjectDistanceCategory(getInteger(rs, offset, mSubjectDistanceCategory));
+        metadata.setWhiteBalance(getInteger(rs, offset, mWhiteBalance));
+        metadata.setWhiteBalanceColorTemperature(getInteger(rs, offset, mWhiteBalanceColorTemperature));
+
         return metadata;
     }
 
     public void insert(FrameImage.Metadata metadata) throws SQLException {
+        insert(Collections.singletonList(metadata));
+    }
+
+    public void insert(List<FrameImage.Metadata> metadatas) throws SQLException {
+        if (metadatas.isEmpty()) {
+            return;
+        }
+
         if (mInsertPreparedStatement == null) {
             prepareInsert();
         }
 
-        mInsertPlaceHolders.get(mId).setLong(metadata.getImageId(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mMake).setString(metadata.getMake(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mModel).setString(metadata.getModel(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mLens).setString(metadata.getLens(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mAperture).setObject(metadata.getAperture(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mFocalLength).setObject(metadata.getFocalLength(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mFocalLength35).setObject(metadata.getFocalLength35(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mExposureTime).setObject(metadata.getExposureTime(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mExposureProgram).setInt(metadata.getExposureProgram(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mExposureMode).setInt(metadata.getExposureMode(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mSensitivity).setInt(metadata.getSensitivity(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mFlash).setInt(metadata.getFlash(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mWhiteBalance).setInt(metadata.getWhiteBalance(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mWhiteBalanceColorTemperature).setInt(metadata.getWhiteBalanceColorTemperature(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mMeteringMode).setInt(metadata.getMeteringMode(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mSubjectDistance).setString(metadata.getSubjectDistance(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mSubjectDistanceCategory).setInt(metadata.getSubjectDistanceCategory(), mInsertPreparedStatement);
-
-        mInsertPreparedStatement.executeUpdate();
+        for (FrameImage.Metadata metadata : metadatas) {
+            mInsertPlaceHolders.get(mId).setLong(metadata.getImageId(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mMake).setString(metadata.getMake(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mModel).setString(metadata.getModel(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mLens).setString(metadata.getLens(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mAperture).setObject(metadata.getAperture(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mFocalLength).setObject(metadata.getFocalLength(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mFocalLength35).setObject(metadata.getFocalLength35(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mExposureTime).setObject(metadata.getExposureTime(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mExposureProgram).setInt(metadata.getExposureProgram(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mExposureMode).setInt(metadata.getExposureMode(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mSensitivity).setInt(metadata.getSensitivity(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mFlash).setInt(metadata.getFlash(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mWhiteBalance).setInt(metadata.getWhiteBalance(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mWhiteBalanceColorTemperature).setInt(metadata.getWhiteBalanceColorTemperature(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mMeteringMode).setInt(metadata.getMeteringMode(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mSubjectDistance).setString(metadata.getSubjectDistance(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mSubjectDistanceCategory).setInt(metadata.getSubjectDistanceCategory(), mInsertPreparedStatement);
+
+            mInsertPreparedStatement.addBatch();
+        }
+
+        mInsertPreparedStatement.executeBatch();
     }
 
     private void prepareInsert() throws SQLException {
@@ -205,7 +234,7 @@ public class ImageMetadataManager extends BaseManager {
                 .validate();
 
         String sql = insertQuery.toString();
-        mInsertPreparedStatement = mDb.getConnection().prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        mInsertPreparedStatement = mDb.getConnection().prepareStatement(sql);
         //System.out.println(mInsertPreparedStatement.toString());
     }
 
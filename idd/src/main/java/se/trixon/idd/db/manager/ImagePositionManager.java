@@ -21,11 +21,14 @@ import com.healthmarketscience.sqlbuilder.SelectQuery;
 import com.healthmarketscience.sqlbuilder.dbspec.Constraint;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbColumn;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbConstraint;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import se.trixon.idd.db.ConnectionPool.PooledConnection;
 import se.trixon.idl.FrameImage;
 
 /**
@@ -73,6 +76,8 @@ public class ImagePositionManager extends BaseManager {
         manager = ImageManager.getInstance();
         indexName = getIndexName(new DbColumn[]{manager.getId()}, "fkey");
         mId.references(indexName, manager.getTable(), manager.getId());
+
+        addIndex(mLatitudeNumber, mLongitudeNumber);
     }
 
     public Columns columns() {
@@ -88,58 +93,79 @@ public class ImagePositionManager extends BaseManager {
     }
 
     public FrameImage.Position getImagePosition(final Long imageId) {
-        FrameImage.Position position;
-
-        SelectQuery query = new SelectQuery()
-                .addAllTableColumns(mTable)
-                .addCondition(BinaryCondition.equalTo(mId, imageId))
-                .validate();
-
-        String sql = query.toString();
-        try (Statement statement = mDb.getAutoCommitConnection().createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE)) {
-            ResultSet rs = statement.executeQuery(sql);
-            if (rs.first()) {
-                position = new FrameImage.Position();
-                position.setAccuracy(getDouble(rs, mAccuracy));
-                position.setAltitude(getDouble(rs, mAltitude));
-                position.setDescription(getString(rs, mDescription));
-                position.setImageId(getLong(rs, mId));
-                position.setLatitude(getString(rs, mLatitude));
-                position.setLatitudeNumber(getDouble(rs, mLatitudeNumber));
-                position.setLongitude(getString(rs, mLongitude));
-                position.setLongitudeNumber(getDouble(rs, mLongitudeNumber));
-                position.setOrientation(getDouble(rs, mOrientation));
-                position.setRoll(getDouble(rs, mRoll));
-                position.setTilt(getDouble(rs, mTilt));
-            } else {
-                position = null;
+        try (PooledConnection connection = mDb.borrowConnection()) {
+            PreparedStatement statement = getReadStatement(connection, "getImagePosition", queryPreparer -> new SelectQuery()
+                    .addAllTableColumns(mTable)
+                    .addCondition(BinaryCondition.equalTo(mId, queryPreparer.getNewPlaceHolder()))
+            );
+
+            statement.setLong(1, imageId);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? getImagePosition(rs, 1) : null;
             }
-        } catch (NullPointerException | SQLException ex) {
+        } catch (SQLException ex) {
             LOGGER.log(Level.SEVERE, "dbError: getImagePosition{0}", ex);
-            position = null;
+            return null;
+        }
+    }
+
+    /**
+     * @param rs positioned on a row with all columns of this table
+     * @param offset the index of the first column of this table
+     * @return the position of the row, or null if there is none
+     * @throws SQLException
+     */
+    public FrameImage.Position getImagePosition(ResultSet rs, int offset) throws SQLException {
+        if (getLong(rs, offset, mId) == null) {
+            return null;
         }
 
+        FrameImage.Position position = new FrameImage.Position();
+        position.setAccuracy(getDouble(rs, offset, mAccuracy));
+        position.setAltitude(getDouble(rs, offset, mAltitude));
+        position.setDescription(getString(rs, offset, mDescription));
+        position.setImageId(getLong(rs, offset, mId));
+        position.setLatitude(getString(rs, offset, mLatitude));
+        position.setLatitudeNumber(getDouble(rs, offset, mLatitudeNumber));
+        position.setLongitude(getString(rs, offset, mLongitude));
+        position.setLongitudeNumber(getDouble(rs, offset, mLongitudeNumber));
+        position.setOrientation(getDouble(rs, offset, mOrientation));
+        position.setRoll(getDouble(rs, offset, mRoll));
+        position.setTilt(getDouble(rs, offset, mTilt));
+
         return position;
     }
 
     public void insert(FrameImage.Position position) throws SQLException {
+        insert(Collections.singletonList(position));
+    }
+
+    public void insert(List<FrameImage.Position> positions) throws SQLException {
+        if (positions.isEmpty()) {
+            return;
+        }
+
         if (mInsertPreparedStatement == null) {
             prepareInsert();
         }
 
-        mInsertPlaceHolders.get(mId).setLong(position.getImageId(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mAccuracy).setObject(position.getAccuracy(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mAltitude).setObject(position.getAltitude(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mDescription).setString(position.getDescription(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mLatitude).setString(position.getLatitude(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mLatitudeNumber).setObject(position.getLatitudeNumber(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mLongitude).setString(position.getLongitude(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mLongitudeNumber).setObject(position.getLongitudeNumber(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mOrientation).setObject(position.getOrientation(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mRoll).setObject(position.getRoll(), mInsertPreparedStatement);
-        mInsertPlaceHolders.get(mTilt).setObject(position.getTilt(), mInsertPreparedStatement);
-
-        mInsertPreparedStatement.executeUpdate();
+        for (FrameImage.Position position : positions) {
+            mInsertPlaceHolders.get(mId).setLong(position.getImageId(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mAccuracy).setObject(position.getAccuracy(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mAltitude).setObject(position.getAltitude(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mDescription).setString(position.getDescription(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mLatitude).setString(position.getLatitude(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mLatitudeNumber).setObject(position.getLatitudeNumber(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mLongitude).setString(position.getLongitude(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mLongitudeNumber).setObject(position.getLongitudeNumber(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mOrientation).setObject(position.getOrientation(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mRoll).setObject(position.getRoll(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mTilt).setObject(position.getTilt(), mInsertPreparedStatement);
+
+            mInsertPreparedStatement.addBatch();
+        }
+
+        mInsertPreparedStatement.executeBatch();
     }
 
     private void prepareInsert() throws SQLException {
@@ -172,7 +198,7 @@ public class ImagePositionManager extends BaseManager {
                 .validate();
 
         String sql = insertQuery.toString();
-        mInsertPreparedStatement = mDb.getConnection().prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        mInsertPreparedStatement = mDb.getConnection().prepareStatement(sql);
         //System.out.println(mInsertPreparedStatement.toString());
     }
 
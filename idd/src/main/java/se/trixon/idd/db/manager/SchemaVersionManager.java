@@ -0,0 +1,90 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.idd.db.manager;
+
+import com.healthmarketscience.sqlbuilder.DeleteQuery;
+import com.healthmarketscience.sqlbuilder.FunctionCall;
+import com.healthmarketscience.sqlbuilder.InsertQuery;
+import com.healthmarketscience.sqlbuilder.SelectQuery;
+import com.healthmarketscience.sqlbuilder.dbspec.Constraint;
+import com.healthmarketscience.sqlbuilder.dbspec.basic.DbColumn;
+import com.healthmarketscience.sqlbuilder.dbspec.basic.DbConstraint;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Stores the schema version of the catalog tables. The version is written on
+ * the update connection and is committed together with the migration step
+ * that reached it.
+ *
+ * @author Patrik Karlström
+ */
+public class SchemaVersionManager extends BaseManager {
+
+    public static SchemaVersionManager getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private SchemaVersionManager() {
+        mTable = getSchema().addTable("schema_version");
+
+        mId = mTable.addColumn("version", SQL_INT, null);
+    }
+
+    @Override
+    public void create() {
+        String indexName = getIndexName(new DbColumn[]{mId}, "pkey");
+        DbConstraint primaryKeyConstraint = new DbConstraint(mTable, indexName, Constraint.Type.PRIMARY_KEY, mId);
+
+        mDb.create(mTable, primaryKeyConstraint);
+    }
+
+    /**
+     * @return the version, or 0 if none is stored
+     * @throws SQLException
+     */
+    public int getVersion() throws SQLException {
+        SelectQuery query = new SelectQuery()
+                .addCustomColumns(FunctionCall.max().addColumnParams(mId))
+                .validate();
+
+        try (Statement statement = mDb.getConnection().createStatement()) {
+            ResultSet rs = statement.executeQuery(query.toString());
+
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    public void setVersion(int version) throws SQLException {
+        DeleteQuery deleteQuery = new DeleteQuery(mTable)
+                .validate();
+
+        InsertQuery insertQuery = new InsertQuery(mTable)
+                .addColumn(mId, version)
+                .validate();
+
+        try (Statement statement = mDb.getConnection().createStatement()) {
+            statement.executeUpdate(deleteQuery.toString());
+            statement.executeUpdate(insertQuery.toString());
+        }
+    }
+
+    private static class Holder {
+
+        private static final SchemaVersionManager INSTANCE = new SchemaVersionManager();
+    }
+}
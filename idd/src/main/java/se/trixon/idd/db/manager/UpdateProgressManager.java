@@ -0,0 +1,153 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.idd.db.manager;
+
+import com.healthmarketscience.sqlbuilder.BinaryCondition;
+import com.healthmarketscience.sqlbuilder.DeleteQuery;
+import com.healthmarketscience.sqlbuilder.InsertQuery;
+import com.healthmarketscience.sqlbuilder.QueryPreparer;
+import com.healthmarketscience.sqlbuilder.SelectQuery;
+import com.healthmarketscience.sqlbuilder.dbspec.Constraint;
+import com.healthmarketscience.sqlbuilder.dbspec.basic.DbColumn;
+import com.healthmarketscience.sqlbuilder.dbspec.basic.DbConstraint;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import se.trixon.idd.db.ConnectionPool.PooledConnection;
+
+/**
+ * Directories whose files are committed by an UPDATE that has not finished
+ * yet, with their modification time, used to resume an interrupted update.
+ *
+ * @author Patrik Karlström
+ */
+public class UpdateProgressManager extends BaseManager {
+
+    private final DbColumn mModificationMillis;
+
+    public static UpdateProgressManager getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private UpdateProgressManager() {
+        mTable = getSchema().addTable("update_progress");
+
+        mId = mTable.addColumn("directory", SQL_VARCHAR, Integer.MAX_VALUE);
+        mModificationMillis = mTable.addColumn("modification_millis", SQL_BIGINT, null);
+    }
+
+    /**
+     * Deletes the progress of path and the directories below it, done in the
+     * update transaction.
+     *
+     * @param path
+     * @throws SQLException
+     */
+    public void clear(Path path) throws SQLException {
+        QueryPreparer queryPreparer = new QueryPreparer();
+        QueryPreparer.PlaceHolder placeHolder = queryPreparer.getNewPlaceHolder();
+
+        DeleteQuery deleteQuery = new DeleteQuery(mTable)
+                .addCondition(BinaryCondition.equalTo(mId, placeHolder))
+                .validate();
+
+        try (PreparedStatement statement = mDb.getConnection().prepareStatement(deleteQuery.toString())) {
+            for (String directory : getDirectories().keySet()) {
+                if (Paths.get(directory).startsWith(path)) {
+                    placeHolder.setString(directory, statement);
+                    statement.addBatch();
+                }
+            }
+
+            statement.executeBatch();
+        }
+    }
+
+    @Override
+    public void create() {
+        String indexName = getIndexName(new DbColumn[]{mId}, "pkey");
+        DbConstraint primaryKeyConstraint = new DbConstraint(mTable, indexName, Constraint.Type.PRIMARY_KEY, mId);
+
+        mDb.create(mTable, primaryKeyConstraint);
+    }
+
+    /**
+     * @return the modification time in millis of the completed directories, or
+     * null if it is not known
+     * @throws SQLException
+     */
+    public Map<String, Long> getDirectories() throws SQLException {
+        Map<String, Long> directories = new HashMap<>();
+
+        try (PooledConnection connection = mDb.borrowConnection()) {
+            PreparedStatement statement = getReadStatement(connection, "getDirectories", queryPreparer -> new SelectQuery()
+                    .addColumns(mId, mModificationMillis)
+            );
+
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    long modificationMillis = rs.getLong(2);
+                    directories.put(rs.getString(1), rs.wasNull() ? null : modificationMillis);
+                }
+            }
+        }
+
+        return directories;
+    }
+
+    /**
+     * @param directories the modification time in millis by directory
+     * @throws SQLException
+     */
+    public void insert(Map<String, Long> directories) throws SQLException {
+        if (directories.isEmpty()) {
+            return;
+        }
+
+        if (mInsertPreparedStatement == null) {
+            prepareInsert();
+        }
+
+        for (Map.Entry<String, Long> entry : directories.entrySet()) {
+            mInsertPlaceHolders.get(mId).setString(entry.getKey(), mInsertPreparedStatement);
+            mInsertPlaceHolders.get(mModificationMillis).setLong(entry.getValue(), mInsertPreparedStatement);
+            mInsertPreparedStatement.addBatch();
+        }
+
+        mInsertPreparedStatement.executeBatch();
+    }
+
+    private void prepareInsert() throws SQLException {
+        mInsertPlaceHolders.init(mId, mModificationMillis);
+
+        InsertQuery insertQuery = new InsertQuery(mTable)
+                .addColumn(mId, mInsertPlaceHolders.get(mId))
+                .addColumn(mModificationMillis, mInsertPlaceHolders.get(mModificationMillis))
+                .validate();
+
+        String sql = insertQuery.toString();
+        mInsertPreparedStatement = mDb.getConnection().prepareStatement(sql);
+    }
+
+    private static class Holder {
+
+        private static final UpdateProgressManager INSTANCE = new UpdateProgressManager();
+    }
+}
@@ -27,10 +27,23 @@ public enum Command {
      * Closes the connection to IDD. This command will not generate a response.
      */
     CLOSE,
+    /**
+     * Counts the images matching FILTER..., see RANDOM.
+     *
+     * Prints "count: N".
+     */
+    COUNT,
     /**
      * Remove this client as an image broadcast listener.
      */
     DEREGISTER,
+    /**
+     * Counts the images matching FILTER... by FIELD, one of album, date (by
+     * year), lens, make, model or rating, e.g. "FACETS make rating&gt;=3".
+     *
+     * Prints "FIELD: VALUE" followed by "count: N" for each value.
+     */
+    FACETS,
     /**
      * Kills IDD.
      */
@@ -44,21 +57,48 @@ public enum Command {
      */
     PING,
     /**
+     * Sends a random image to the registered frames.
      *
+     * The image can be filtered by FILTER... terms that must all match:
+     * date, rating, lat and lon with =, &lt;, &lt;=, &gt; or &gt;=, album,
+     * make, model and lens with = where * matches anything. Dates are YYYY,
+     * YYYY-MM, YYYY-MM-DD or relative like -5y, -6m or -30d, e.g. "RANDOM
+     * date&gt;=-5y album=/family/*".
      */
     RANDOM,
+    /**
+     * Rebuilds the image database from scratch. The current database is used until the rebuild is done and then replaced at once.
+     *
+     * Prints "updating_db: JOBID" like UPDATE.
+     */
+    REBUILD,
     /**
      * Add this client as an image broadcast listener.
+     *
+     * With FORMAT "binary", from protocol version 0.0.2, the images are sent
+     * as length prefixed frames instead of json lines and the connection is
+     * only used for them.
      */
     REGISTER,
     /**
+     * Reports the registered frames.
      *
+     * Prints "clients: N" and "frames: N" followed by, for each frame, its
+     * name, format, registration time, images_sent, bytes_sent, queue_depth
+     * and the number of images dropped by the frame_queue_policy.
      */
     STATS,
+    /**
+     * Reports the status of IDD.
+     *
+     * Prints "updating_db: JOBID" while an update is running, followed by the
+     * progress of the running or last update job.
+     */
+    STATUS,
     /**
      * Updates the image database: find new files, remove deleted files, update modified files.
      *
-     * URI is a particular directory or song/file to update. If you do not specify it, everything is updated.
+     * URI is a particular directory to update, absolute or relative to the image directory. If you do not specify it, everything is updated.
      *
      * Prints "updating_db: JOBID" where JOBID is a positive number identifying the update job. You can read the current job id in the status response.
      */
@@ -89,15 +129,20 @@ public enum Command {
             case CLOSE:
             case KILL:
             case PING:
-            case RANDOM:
-            case REGISTER:
+            case REBUILD:
             case STATS:
+            case STATUS:
             case VERSION:
                 valid = args.length == 0;
                 break;
 
+            case FACETS:
+                valid = args.length >= 1;
+                break;
+
+            case REGISTER:
             case UPDATE:
-                valid = args.length >= 0 && args.length < 1;
+                valid = args.length <= 1;
                 break;
 
             case PASSWORD:
@@ -21,8 +21,18 @@ import com.google.gson.JsonSyntaxException;
 import com.google.gson.annotations.SerializedName;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Base64;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -30,7 +40,6 @@ import javafx.embed.swing.SwingFXUtils;
 import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import se.trixon.almond.util.GraphicsHelper;
 
@@ -47,8 +56,11 @@ public class FrameImageCarrier {
             .setLenient()
             .create();
     private static final Logger LOGGER = Logger.getLogger(FrameImageCarrier.class.getName());
+    private static final int MAX_FRAME_HEADER_SIZE = 1024 * 1024;
+    private static final int MAX_FRAME_IMAGE_SIZE = 256 * 1024 * 1024;
     @SerializedName("base64")
     private String mBase64;
+    private transient byte[] mBytes;
     @SerializedName("frame_image")
     private FrameImage mFrameImage;
     @SerializedName("md5")
@@ -60,17 +72,58 @@ public class FrameImageCarrier {
         return GSON.fromJson(json, FrameImageCarrier.class);
     }
 
+    /**
+     * Reads a frame written by {@link #writeFrame(OutputStream)}.
+     *
+     * @param input
+     * @return
+     * @throws IOException if the frame is not valid, or its header or image
+     * is too large
+     * @throws JsonSyntaxException
+     */
+    public static FrameImageCarrier readFrame(DataInputStream input) throws IOException, JsonSyntaxException {
+        if (input.readInt() != IddHelper.FRAME_IMAGE_MAGIC) {
+            throw new IOException("Not a frame image");
+        }
+
+        byte[] header = new byte[readLength(input, MAX_FRAME_HEADER_SIZE, "header")];
+        input.readFully(header);
+        FrameImageCarrier frameImageCarrier = GSON.fromJson(new InputStreamReader(new ByteArrayInputStream(header), StandardCharsets.UTF_8), FrameImageCarrier.class);
+
+        byte[] bytes = new byte[readLength(input, MAX_FRAME_IMAGE_SIZE, "image")];
+        input.readFully(bytes);
+        frameImageCarrier.mBytes = bytes;
+
+        return frameImageCarrier;
+    }
+
     public FrameImageCarrier() {
     }
 
     public FrameImageCarrier(FrameImage frameImage, String path) {
+        this(frameImage, path, true);
+    }
+
+    /**
+     * @param frameImage
+     * @param path
+     * @param base64 false if the carrier is sent with
+     * {@link #writeFrame(OutputStream)}
+     */
+    public FrameImageCarrier(FrameImage frameImage, String path, boolean base64) {
         mFrameImage = frameImage;
         mPath = path;
-        setBase64FromPath(path);
+        if (base64) {
+            setBase64FromPath(path);
+        }
         mMd5 = IddHelper.getMd5(new File(path));
     }
 
     public String getBase64() {
+        if (mBase64 == null && mBytes != null) {
+            mBase64 = Base64.getEncoder().encodeToString(mBytes);
+        }
+
         return mBase64;
     }
 
@@ -84,7 +137,7 @@ public class FrameImageCarrier {
     }
 
     public byte[] getByteArray() {
-        return Base64.getDecoder().decode(mBase64);
+        return mBytes != null ? mBytes : Base64.getDecoder().decode(mBase64);
     }
 
     public FrameImage getFrameImage() {
@@ -124,15 +177,7 @@ public class FrameImageCarrier {
     }
 
     public boolean hasValidMd5() {
-        String md5 = null;
-
-        try {
-            md5 = IddHelper.getMd5(IOUtils.toByteArray(getInputStream()));
-        } catch (IOException ex) {
-            LOGGER.log(Level.SEVERE, null, ex);
-        }
-
-        return StringUtils.equalsIgnoreCase(md5, getMd5());
+        return StringUtils.equalsIgnoreCase(IddHelper.getMd5(getByteArray()), getMd5());
     }
 
     public boolean save(File file) {
@@ -176,4 +221,51 @@ public class FrameImageCarrier {
     public String toJson() {
         return GSON.toJson(this);
     }
+
+    /**
+     * Writes the magic, the length prefixed json header and the length
+     * prefixed file at path, transferred from the file without base64.
+     *
+     * @param output
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    public long writeFrame(OutputStream output) throws IOException {
+        byte[] header = GSON.toJson(this).getBytes(StandardCharsets.UTF_8);
+
+        try (FileChannel channel = FileChannel.open(Paths.get(mPath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAX_FRAME_IMAGE_SIZE) {
+                throw new IOException(String.format("Too large to send: %s", mPath));
+            }
+
+            DataOutputStream dataOutput = new DataOutputStream(output);
+            dataOutput.writeInt(IddHelper.FRAME_IMAGE_MAGIC);
+            dataOutput.writeInt(header.length);
+            dataOutput.write(header);
+            dataOutput.writeInt((int) size);
+            dataOutput.flush();
+
+            WritableByteChannel target = Channels.newChannel(output);
+            for (long position = 0; position < size;) {
+                long count = channel.transferTo(position, size - position, target);
+                if (count <= 0) {
+                    throw new IOException(String.format("Truncated while sending: %s", mPath));
+                }
+                position += count;
+            }
+            output.flush();
+
+            return 3 * Integer.BYTES + header.length + size;
+        }
+    }
+
+    private static int readLength(DataInputStream input, int max, String part) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > max) {
+            throw new IOException(String.format("Invalid frame %s length: %d", part, length));
+        }
+
+        return length;
+    }
 }
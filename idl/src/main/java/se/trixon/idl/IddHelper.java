@@ -17,6 +17,9 @@ package se.trixon.idl;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
@@ -24,7 +27,8 @@ import java.util.Date;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import se.trixon.almond.util.StringHelper;
 import se.trixon.almond.util.SystemHelper;
 
@@ -37,6 +41,8 @@ public class IddHelper {
     public static final int DEFAULT_PORT = 5705;
     public static final String FRAME_IMAGE_BEG = "::FRAME_IMAGE_BEG::";
     public static final String FRAME_IMAGE_END = "::FRAME_IMAGE_END::";
+    public static final String FRAME_IMAGE_FORMAT_BINARY = "binary";
+    public static final int FRAME_IMAGE_MAGIC = 0x49444446;
     public static final String OPT_EXT_VIEW_REPEAT = "ext-view-repeat";
     public static final String OPT_EXT_VIEW_SINGLE = "ext-view-single";
     public static final String OPT_HELP = "help";
@@ -45,11 +51,24 @@ public class IddHelper {
     public static final String OPT_VERBOSE = "verbose";
     public static final String OPT_VERSION = "version";
     public static final String OPT_WAIT = "wait";
-    public static final String PROTOCOL_VERSION = "0.0.1";
-
+    public static final String PROTOCOL_VERSION = "0.0.2";
+    /**
+     * The first protocol version where frames can register with
+     * FRAME_IMAGE_FORMAT_BINARY.
+     */
+    public static final String PROTOCOL_VERSION_BINARY = "0.0.2";
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
     private static final Logger LOGGER = Logger.getLogger(IddHelper.class.getName());
     private static final ResourceBundle sBundle = SystemHelper.getBundle(IddHelper.class, "Bundle");
-    private static MessageDigest sMessageDigest;
+    private static final ThreadLocal<ByteBuffer> sHashBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+    private static final ThreadLocal<MessageDigest> sMessageDigest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
     private static final SimpleDateFormat sSimpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH.mm.ss");
 
     static {
@@ -58,13 +77,27 @@ public class IddHelper {
                     + "                         "
                     + "[%4$s] %2$s%n");
         }
+    }
 
-        try {
-            sMessageDigest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException ex) {
-            LOGGER.log(Level.SEVERE, null, ex);
+    /**
+     * @param version1
+     * @param version2
+     * @return negative, zero or positive as version1 is older than, equal to
+     * or newer than version2
+     */
+    public static int compareVersions(String version1, String version2) {
+        String[] parts1 = StringUtils.split(version1, ".");
+        String[] parts2 = StringUtils.split(version2, ".");
+
+        for (int i = 0; i < Math.max(parts1.length, parts2.length); i++) {
+            int part1 = i < parts1.length ? NumberUtils.toInt(parts1[i]) : 0;
+            int part2 = i < parts2.length ? NumberUtils.toInt(parts2[i]) : 0;
+            if (part1 != part2) {
+                return Integer.compare(part1, part2);
+            }
         }
 
+        return 0;
     }
 
     public static void exit() {
@@ -79,11 +112,28 @@ public class IddHelper {
         return sBundle;
     }
 
+    /**
+     * Streams the file through a reusable direct buffer, the file is never held
+     * in memory as a whole.
+     *
+     * @param file
+     * @return the md5 as hex, or null if the file could not be read
+     */
     public static String getMd5(File file) {
         String md5 = null;
 
-        try {
-            md5 = getMd5(FileUtils.readFileToByteArray(file));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MessageDigest messageDigest = getMd5Digest();
+            ByteBuffer buffer = sHashBuffer.get();
+            buffer.clear();
+
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                messageDigest.update(buffer);
+                buffer.clear();
+            }
+
+            md5 = StringHelper.bytesToHex(messageDigest.digest());
         } catch (IOException ex) {
             LOGGER.log(Level.SEVERE, null, ex);
         }
@@ -92,7 +142,17 @@ public class IddHelper {
     }
 
     public static String getMd5(byte[] bytes) {
-        return StringHelper.bytesToHex(sMessageDigest.digest(bytes));
+        return StringHelper.bytesToHex(getMd5Digest().digest(bytes));
+    }
+
+    /**
+     * @return a reset md5 digest owned by the calling thread
+     */
+    public static MessageDigest getMd5Digest() {
+        MessageDigest messageDigest = sMessageDigest.get();
+        messageDigest.reset();
+
+        return messageDigest;
     }
 
     public static String millisToDateTime(long timestamp) {
@@ -16,7 +16,11 @@
 package se.trixon.idl.client;
 
 import com.google.gson.JsonSyntaxException;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
@@ -25,6 +29,7 @@ import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -48,7 +53,7 @@ public final class Client {
     private BufferedReader mCommandIn;
     private PrintStream mCommandOut;
     private Socket mCommandSocket;
-    private BufferedReader mFrameIn;
+    private DataInputStream mFrameIn;
     private PrintStream mFrameOut;
     private Socket mFrameSocket;
     private String mHost;
@@ -137,29 +142,44 @@ public final class Client {
         return mFrameSocket != null && mFrameSocket.isConnected();
     }
 
+    /**
+     * Registers a frame connection, images are received as binary frames if
+     * the server supports them.
+     *
+     * @throws IOException
+     */
     public void register() throws IOException {
         if (mFrameSocket == null) {
             connectFrame();
-            sendFrame("register");
+            String protocolVersion = StringUtils.trimToEmpty(StringUtils.substringAfter(readFrameLine(), "OK IDD "));
+            boolean binary = IddHelper.compareVersions(protocolVersion, IddHelper.PROTOCOL_VERSION_BINARY) >= 0;
+            sendFrame(binary ? "register " + IddHelper.FRAME_IMAGE_FORMAT_BINARY : "register");
 
             Thread thread = new Thread(() -> {
-                String responseLine;
-                StringBuilder sb = new StringBuilder();
-
                 try {
-                    while ((responseLine = mFrameIn.readLine()) != null) {
-                        //System.out.println("RECE >>> " + responseLine);
-                        if (StringUtils.equalsIgnoreCase(responseLine, IddHelper.FRAME_IMAGE_BEG)) {
-                            sb = new StringBuilder();
-                        } else if (!StringUtils.equalsIgnoreCase(responseLine, IddHelper.FRAME_IMAGE_END)) {
-                            sb.append(responseLine).append("\n");
-                        } else {
-                            restoreFrameImageCarrier(sb.toString());
+                    if (binary) {
+                        while (true) {
+                            notifyReceive(FrameImageCarrier.readFrame(mFrameIn));
+                        }
+                    } else {
+                        BufferedReader frameReader = new BufferedReader(new InputStreamReader(mFrameIn, StandardCharsets.UTF_8));
+                        String responseLine;
+                        StringBuilder sb = new StringBuilder();
+
+                        while ((responseLine = frameReader.readLine()) != null) {
+                            //System.out.println("RECE >>> " + responseLine);
+                            if (StringUtils.equalsIgnoreCase(responseLine, IddHelper.FRAME_IMAGE_BEG)) {
+                                sb = new StringBuilder();
+                            } else if (!StringUtils.equalsIgnoreCase(responseLine, IddHelper.FRAME_IMAGE_END)) {
+                                sb.append(responseLine).append("\n");
+                            } else {
+                                restoreFrameImageCarrier(sb.toString());
+                            }
                         }
                     }
-                } catch (SocketException ex) {
+                } catch (EOFException | SocketException ex) {
                     //
-                } catch (IOException ex) {
+                } catch (IOException | JsonSyntaxException ex) {
                     Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex);
                 }
             });
@@ -186,7 +206,7 @@ public final class Client {
     }
 
     public String send(String string) throws IOException {
-        return send(mCommandOut, mCommandIn, string);
+        return send(mCommandOut, mCommandIn::readLine, string);
     }
 
     public void setHost(String aHost) {
@@ -231,7 +251,7 @@ public final class Client {
 
     private void connectFrame() throws MalformedURLException, SocketException, IOException, UnknownHostException {
         mFrameSocket = new Socket(mHost, mPort);
-        mFrameIn = new BufferedReader(new InputStreamReader(mFrameSocket.getInputStream()));
+        mFrameIn = new DataInputStream(new BufferedInputStream(mFrameSocket.getInputStream()));
         mFrameOut = new PrintStream(mFrameSocket.getOutputStream());
 
         mClientListeners.stream().forEach((clientListener) -> {
@@ -248,15 +268,36 @@ public final class Client {
 //        }));
     }
 
-    private void restoreFrameImageCarrier(String json) throws JsonSyntaxException, IOException {
-        //FileUtils.write(new File("/home/pata/frameImageCarrier.json"), json, "utf-8");
-        FrameImageCarrier frameImageCarrier = FrameImageCarrier.fromJson(json);
+    private void notifyReceive(FrameImageCarrier frameImageCarrier) {
         mClientListeners.stream().forEach((clientListener) -> {
             clientListener.onClientReceive(frameImageCarrier);
         });
     }
 
-    private String send(PrintStream out, BufferedReader in, String string) throws IOException {
+    /**
+     * Reads a line of the frame connection byte by byte, nothing after it is
+     * consumed.
+     */
+    private String readFrameLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        for (int b = mFrameIn.read(); b != '\n'; b = mFrameIn.read()) {
+            if (b == -1) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8.name());
+            } else if (b != '\r') {
+                line.write(b);
+            }
+        }
+
+        return line.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private void restoreFrameImageCarrier(String json) throws JsonSyntaxException, IOException {
+        //FileUtils.write(new File("/home/pata/frameImageCarrier.json"), json, "utf-8");
+        notifyReceive(FrameImageCarrier.fromJson(json));
+    }
+
+    private String send(PrintStream out, LineReader in, String string) throws IOException {
         out.println(string.trim());
         StringBuilder sb = new StringBuilder();
         String responseLine;
@@ -275,6 +316,11 @@ public final class Client {
     }
 
     private String sendFrame(String string) throws IOException {
-        return send(mFrameOut, mFrameIn, string);
+        return send(mFrameOut, this::readFrameLine, string);
+    }
+
+    private interface LineReader {
+
+        String readLine() throws IOException;
     }
 }